@@ -0,0 +1,55 @@
+package org.sugarj.common.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sugarj.common.Exec;
+import org.sugarj.common.Exec.ExecutionResult;
+
+/**
+ * Overhead of spawning a trivial external command through {@link Exec},
+ * including stream draining and statistics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecBenchmark {
+
+  /**
+   * Space-separated command line.
+   */
+  @Param({ "true" })
+  public String command;
+
+  private String[] cmds;
+
+  @Setup
+  public void setup() {
+    cmds = command.split(" ");
+  }
+
+  @Benchmark
+  public ExecutionResult run() {
+    return Exec.run(true, cmds);
+  }
+
+  @Benchmark
+  public Process processBuilder() throws Exception {
+    Process p = new ProcessBuilder(cmds).start();
+    p.waitFor();
+    return p;
+  }
+}
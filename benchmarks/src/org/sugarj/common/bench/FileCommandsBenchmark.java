@@ -0,0 +1,127 @@
+package org.sugarj.common.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sugarj.common.FileCommands;
+
+/**
+ * File operations on a synthetic tree of <code>fileCount</code> files of
+ * <code>fileSize</code> bytes each. Per-file operations cycle through all
+ * files, so the tree should fit into the page cache for stable results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileCommandsBenchmark {
+
+  @Param({ "1000" })
+  public int fileCount;
+
+  @Param({ "1024", "65536" })
+  public int fileSize;
+
+  private FileTree tree;
+  private Path copyTarget;
+  private byte[] bytes;
+  private int next;
+
+  @Setup
+  public void setup() throws IOException {
+    tree = FileTree.create(fileCount, fileSize);
+    copyTarget = Files.createTempDirectory("sugarj-bench-copy").resolve("copy.txt");
+    bytes = Files.readAllBytes(tree.files.get(0));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    tree.delete();
+    FileCommands.delete(copyTarget.getParent());
+  }
+
+  private Path nextFile() {
+    Path file = tree.files.get(next);
+    next = next + 1 == fileCount ? 0 : next + 1;
+    return file;
+  }
+
+  @Benchmark
+  public byte[] fileHash() throws IOException {
+    return FileCommands.fileHash(nextFile());
+  }
+
+  @Benchmark
+  public byte[] streamHash() throws IOException {
+    return FileCommands.streamHash(new ByteArrayInputStream(bytes));
+  }
+
+  @Benchmark
+  public String readFileAsString() throws IOException {
+    return FileCommands.readFileAsString(nextFile());
+  }
+
+  @Benchmark
+  public List<String> readFileLines() throws IOException {
+    return FileCommands.readFileLines(nextFile());
+  }
+
+  @Benchmark
+  public void copyFile() throws IOException {
+    FileCommands.copyFile(nextFile(), copyTarget);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public List<Path> listFilesRecursive() {
+    return FileCommands.listFilesRecursive(tree.root);
+  }
+
+  /**
+   * Deletes a fresh tree per invocation; only the deletion is measured.
+   */
+  @State(Scope.Thread)
+  public static class DeleteState {
+    @Param({ "1000" })
+    public int deleteCount;
+
+    FileTree tree;
+
+    @Setup(Level.Invocation)
+    public void setup() throws IOException {
+      tree = FileTree.create(deleteCount, 1024);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+      tree.delete();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 20)
+  public void delete(DeleteState state) throws IOException {
+    FileCommands.delete(state.tree.root);
+  }
+}
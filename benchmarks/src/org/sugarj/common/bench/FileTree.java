@@ -0,0 +1,67 @@
+package org.sugarj.common.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.sugarj.common.FileCommands;
+
+/**
+ * A synthetic directory tree with deterministic content: text files of
+ * 80-character lines, at most {@link #FANOUT} entries per directory.
+ */
+class FileTree {
+  static final int FANOUT = 16;
+
+  final Path root;
+  final List<Path> files;
+
+  private FileTree(Path root, List<Path> files) {
+    this.root = root;
+    this.files = files;
+  }
+
+  static FileTree create(int fileCount, int fileSize) throws IOException {
+    Path root = Files.createTempDirectory("sugarj-bench");
+    List<Path> files = new ArrayList<>(fileCount);
+    byte[] content = content(fileSize, new Random(42));
+    for (int i = 0; i < fileCount; i++) {
+      Path file = root.resolve(dirFor(i)).resolve("file" + i + ".txt");
+      Files.createDirectories(file.getParent());
+      Files.write(file, content);
+      files.add(file);
+    }
+    return new FileTree(root, files);
+  }
+
+  void delete() throws IOException {
+    if (Files.exists(root))
+      FileCommands.delete(root);
+  }
+
+  /**
+   * Spreads files over nested directories such that no directory has more
+   * than {@link #FANOUT} files or subdirectories.
+   */
+  private static String dirFor(int index) {
+    StringBuilder dir = new StringBuilder();
+    for (int i = index / FANOUT; i > 0; i /= FANOUT)
+      dir.append('d').append(i % FANOUT).append('/');
+    return dir.length() == 0 ? "." : dir.toString();
+  }
+
+  private static byte[] content(int size, Random random) {
+    StringBuilder s = new StringBuilder(size);
+    while (s.length() < size) {
+      for (int i = 0; i < 79 && s.length() < size; i++)
+        s.append((char) ('a' + random.nextInt(26)));
+      if (s.length() < size)
+        s.append('\n');
+    }
+    return s.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+}
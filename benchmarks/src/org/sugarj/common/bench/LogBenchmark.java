@@ -0,0 +1,94 @@
+package org.sugarj.common.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sugarj.common.Log;
+import org.sugarj.common.util.AsyncPrinter.OverflowPolicy;
+
+/**
+ * {@link Log} under contention. Output goes to a discarding stream, so the
+ * benchmarks measure formatting, task bookkeeping and hand-off only. Run
+ * with <code>-t</code> to vary the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class LogBenchmark {
+
+  private static final PrintStream NULL = new PrintStream(new OutputStream() {
+    @Override
+    public void write(int b) { }
+
+    @Override
+    public void write(byte[] b, int off, int len) { }
+  });
+
+  @Param({ "false", "true" })
+  public boolean async;
+
+  private PrintStream out, err;
+  private int level;
+
+  @Setup
+  public void setup() {
+    out = Log.out;
+    err = Log.err;
+    level = Log.log.getLoggingLevel();
+    Log.out = NULL;
+    Log.err = NULL;
+    Log.log.setLoggingLevel(Log.CORE);
+    if (async)
+      Log.log.enableAsyncOutput(1 << 16, OverflowPolicy.DROP);
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (async)
+      Log.log.disableAsyncOutput();
+    Log.log.setLoggingLevel(level);
+    Log.out = out;
+    Log.err = err;
+  }
+
+  @Benchmark
+  public void logEnabled() {
+    Log.log.log("compiling %s", "org/sugarj/common/Log.java", Log.CORE);
+  }
+
+  @Benchmark
+  public void logDisabled() {
+    Log.log.log("compiling %s", "org/sugarj/common/Log.java", Log.DETAIL);
+  }
+
+  @Benchmark
+  public long task() {
+    Log.log.beginTask("Compile", Log.CORE);
+    Log.log.log("compiling", Log.CORE);
+    return Log.log.endTask();
+  }
+
+  @Benchmark
+  public long taskDisabled() {
+    Log.log.beginTask("Compile", Log.DETAIL);
+    return Log.log.endTask();
+  }
+}
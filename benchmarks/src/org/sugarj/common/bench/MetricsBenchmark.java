@@ -0,0 +1,61 @@
+package org.sugarj.common.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sugarj.common.Metrics;
+
+/**
+ * Cost of the I/O instrumentation when disabled and when enabled under
+ * contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class MetricsBenchmark {
+
+  private static final Metrics.Timer TIMER = Metrics.timer("MetricsBenchmark.timer");
+  private static final Metrics.Counter COUNTER = Metrics.counter("MetricsBenchmark.counter");
+
+  @Param({ "false", "true" })
+  public boolean enabled;
+
+  private boolean wasEnabled;
+
+  @Setup
+  public void setup() {
+    wasEnabled = Metrics.ENABLED;
+    Metrics.ENABLED = enabled;
+  }
+
+  @TearDown
+  public void tearDown() {
+    Metrics.ENABLED = wasEnabled;
+  }
+
+  @Benchmark
+  public void timer() {
+    TIMER.stop(TIMER.start());
+  }
+
+  @Benchmark
+  public void counter() {
+    COUNTER.add(1024);
+  }
+}
@@ -0,0 +1,97 @@
+package org.sugarj.common.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sugarj.common.util.IntPair;
+import org.sugarj.common.util.Pair;
+
+/**
+ * Hashing of {@link Pair} and its primitive variants, and maps keyed by
+ * them. Run with <code>-prof gc</code> to see allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PairBenchmark {
+
+  @Param({ "100000" })
+  public int size;
+
+  private Pair<String, Integer> pair;
+  private List<Pair<Integer, Integer>> pairs;
+  private Map<Pair<Integer, Integer>, Integer> boxedMap;
+  private Map<IntPair, Integer> intMap;
+  private int next;
+
+  @Setup
+  public void setup() {
+    pair = Pair.create("org/sugarj/common/util/Pair.java", 42);
+    pairs = new ArrayList<>(size);
+    boxedMap = new HashMap<>();
+    intMap = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      pairs.add(Pair.create(i, i * 31));
+      boxedMap.put(Pair.create(i, i * 31), i);
+      intMap.put(IntPair.create(i, i * 31), i);
+    }
+  }
+
+  @Benchmark
+  public int objectsHash() {
+    return Objects.hash(pair.a, pair.b);
+  }
+
+  @Benchmark
+  public int pairHashCode() {
+    return pair.hashCode();
+  }
+
+  @Benchmark
+  public Integer boxedPairLookup() {
+    int i = nextIndex();
+    return boxedMap.get(Pair.create(i, i * 31));
+  }
+
+  @Benchmark
+  public Integer intPairLookup() {
+    int i = nextIndex();
+    return intMap.get(IntPair.create(i, i * 31));
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Map<Integer, Integer> asMapIterable() {
+    return Pair.asMap((Iterable<Pair<Integer, Integer>>) pairs);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Map<Integer, Integer> asMapCollection() {
+    return Pair.asMap(pairs);
+  }
+
+  private int nextIndex() {
+    int i = next;
+    next = i + 1 == size ? 0 : i + 1;
+    return i;
+  }
+}
@@ -0,0 +1,166 @@
+package org.sugarj.common.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sugarj.common.path.AbsolutePath;
+import org.sugarj.common.path.Path;
+import org.sugarj.common.path.PathCodec;
+import org.sugarj.common.path.RelativePath;
+
+/**
+ * Equality, hashing and externalization of {@link Path}s. The
+ * externalization benchmarks write <code>pathCount</code> relative paths
+ * spread over <code>baseCount</code> base directories, as in build stamps.
+ */
+@SuppressWarnings("deprecation")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark {
+
+  private static final String BASE = "/home/user/workspace/project/target/classes";
+  private static final String FILE = "org/sugarj/common/path/AbsolutePath.class";
+
+  @Param({ "1000" })
+  public int pathCount;
+
+  @Param({ "10" })
+  public int baseCount;
+
+  private AbsolutePath abs1, abs2, absOther;
+  private AbsolutePath interned1, internedOther;
+  private RelativePath rel1, rel2;
+
+  private Path[] paths;
+  private byte[] serialized;
+  private byte[] encoded;
+
+  @Setup
+  public void setup() throws IOException {
+    abs1 = new AbsolutePath(BASE + "/" + FILE);
+    abs2 = new AbsolutePath(BASE + "/" + FILE);
+    absOther = new AbsolutePath(BASE + "/" + FILE + "x");
+    interned1 = abs1.intern();
+    internedOther = absOther.intern();
+    rel1 = new RelativePath(new AbsolutePath(BASE), FILE);
+    rel2 = new RelativePath(new AbsolutePath(BASE), FILE);
+
+    AbsolutePath[] bases = new AbsolutePath[baseCount];
+    for (int i = 0; i < baseCount; i++)
+      bases[i] = new AbsolutePath(BASE + i);
+    paths = new Path[pathCount];
+    for (int i = 0; i < pathCount; i++)
+      paths[i] = new RelativePath(bases[i % baseCount], "org/sugarj/pkg" + (i % 37) + "/Class" + i + ".class");
+
+    serialized = serialize();
+    encoded = encode();
+  }
+
+  @Benchmark
+  public boolean equalsAbsolute() {
+    return abs1.equals(abs2);
+  }
+
+  @Benchmark
+  public boolean equalsAbsoluteDifferent() {
+    return abs1.equals(absOther);
+  }
+
+  @Benchmark
+  public boolean equalsInternedDifferent() {
+    return interned1.equals(internedOther);
+  }
+
+  @Benchmark
+  public boolean equalsRelative() {
+    return rel1.equals(rel2);
+  }
+
+  @Benchmark
+  public int hashCodeAbsolute() {
+    return abs1.hashCode();
+  }
+
+  @Benchmark
+  public int hashCodeRelative() {
+    return rel1.hashCode();
+  }
+
+  @Benchmark
+  public AbsolutePath constructAbsolute() {
+    return new AbsolutePath(BASE + "/" + FILE);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public byte[] serialize() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      for (Path p : paths)
+        out.writeObject(p);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void deserialize(Blackhole bh) throws IOException, ClassNotFoundException {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+      for (int i = 0; i < pathCount; i++)
+        bh.consume(in.readObject());
+    }
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public byte[] encode() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      PathCodec.Encoder encoder = new PathCodec.Encoder(out);
+      for (Path p : paths)
+        encoder.write(p);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void decode(Blackhole bh) throws IOException {
+    decode(bh, false);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void decodeTrusted(Blackhole bh) throws IOException {
+    decode(bh, true);
+  }
+
+  private void decode(Blackhole bh, boolean trusted) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+    PathCodec.Decoder decoder = new PathCodec.Decoder(in, trusted);
+    for (int i = 0; i < pathCount; i++)
+      bh.consume(decoder.read());
+  }
+}
@@ -1,7 +1,11 @@
 package org.sugarj.common;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class AppendingIterable<T> implements Iterable<T> {
 
@@ -17,4 +21,35 @@ public class AppendingIterable<T> implements Iterable<T> {
      return AppendingIterator.appendingIteratorFor(mainIterables.iterator());
   }
 
+  /**
+   * The spliterator is sized if all iterables are collections.
+   */
+  @Override
+  public Spliterator<T> spliterator() {
+    return new AppendingSpliterator<>(mainIterables.spliterator(), size());
+  }
+  
+  public Stream<T> stream() {
+    return StreamSupport.stream(spliterator(), false);
+  }
+  
+  public Stream<T> parallelStream() {
+    return StreamSupport.stream(spliterator(), true);
+  }
+  
+  /**
+   * @return the number of elements, or -1 if not all iterables are collections.
+   */
+  private long size() {
+    if (!(mainIterables instanceof Collection))
+      return -1;
+    long size = 0;
+    for (Iterable<T> it : mainIterables) {
+      if (!(it instanceof Collection))
+        return -1;
+      size += ((Collection<T>) it).size();
+    }
+    return size;
+  }
+
 }
@@ -1,7 +1,9 @@
 package org.sugarj.common;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 public class AppendingIterator<T,E> implements Iterator<E> {
 
@@ -32,11 +34,6 @@ public class AppendingIterator<T,E> implements Iterator<E> {
     Objects.requireNonNull(mainIterator);
     this.mainIterator = mainIterator;
     this.iteratorExtractor = iteratorExtractor;
-    if (this.mainIterator.hasNext()) {
-      this.currentIterator = this.iteratorExtractor.getIterator(this.mainIterator.next());
-    } else {
-      this.currentIterator = null;
-    }
   }
   
 
@@ -56,11 +53,21 @@ public class AppendingIterator<T,E> implements Iterator<E> {
 
   @Override
   public E next() {
-    if (this.currentIterator.hasNext()) {
-      return this.currentIterator.next();
-    } else {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return this.currentIterator.next();
+  }
+  
+  @Override
+  public void forEachRemaining(Consumer<? super E> action) {
+    Objects.requireNonNull(action);
+    if (this.currentIterator != null) {
+      this.currentIterator.forEachRemaining(action);
+    }
+    while (this.mainIterator.hasNext()) {
       this.currentIterator = this.iteratorExtractor.getIterator(this.mainIterator.next());
-      return this.currentIterator.next();
+      this.currentIterator.forEachRemaining(action);
     }
   }
   
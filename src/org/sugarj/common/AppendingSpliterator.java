@@ -0,0 +1,147 @@
+package org.sugarj.common;
+
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the concatenation of iterables. Splits preferably at the
+ * boundaries of the inner iterables, so that each inner iterable is
+ * traversed by a single thread; only the last remaining inner iterable is
+ * split itself.
+ *
+ * The size is exact (and reported as {@link Spliterator#SIZED}) if it was
+ * known on construction and this spliterator was not split yet. After a
+ * split, sizes are distributed proportionally to the number of inner
+ * iterables and are estimates only.
+ */
+public class AppendingSpliterator<E> implements Spliterator<E> {
+
+  private Spliterator<E> current;
+  private Spliterator<? extends Iterable<E>> mainSpliterator;
+  private long size;
+  private boolean exact;
+
+  /**
+   * @param size
+   *          the exact number of elements, or a negative number if unknown.
+   */
+  public AppendingSpliterator(Spliterator<? extends Iterable<E>> mainSpliterator, long size) {
+    this(null, Objects.requireNonNull(mainSpliterator), size < 0 ? Long.MAX_VALUE : size, size >= 0);
+  }
+
+  private AppendingSpliterator(Spliterator<E> current, Spliterator<? extends Iterable<E>> mainSpliterator, long size, boolean exact) {
+    this.current = current;
+    this.mainSpliterator = mainSpliterator;
+    this.size = size;
+    this.exact = exact;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super E> action) {
+    Objects.requireNonNull(action);
+    while (current == null || !current.tryAdvance(action)) {
+      if (!advanceMain())
+        return false;
+    }
+    if (exact)
+      size--;
+    return true;
+  }
+
+  @Override
+  public void forEachRemaining(Consumer<? super E> action) {
+    Objects.requireNonNull(action);
+    if (current != null) {
+      current.forEachRemaining(action);
+      current = null;
+    }
+    if (mainSpliterator != null) {
+      mainSpliterator.forEachRemaining(new Consumer<Iterable<E>>() {
+        @Override
+        public void accept(Iterable<E> it) {
+          it.forEach(action);
+        }
+      });
+      mainSpliterator = null;
+    }
+    size = 0;
+  }
+
+  @Override
+  public Spliterator<E> trySplit() {
+    if (mainSpliterator != null) {
+      long mainSize = mainSpliterator.estimateSize();
+      Spliterator<? extends Iterable<E>> prefix = mainSpliterator.trySplit();
+      if (prefix != null) {
+        long prefixSize = estimatePrefix(prefix.estimateSize(), mainSize);
+        Spliterator<E> split = new AppendingSpliterator<>(current, prefix, prefixSize, false);
+        current = null;
+        size -= prefixSize;
+        exact = false;
+        return split;
+      }
+
+      // the main spliterator cannot be split further: hand off the current
+      // inner iterable and keep the rest
+      if (current != null && mainSize > 0) {
+        long prefixSize = Math.min(current.estimateSize(), size);
+        Spliterator<E> split = current;
+        current = null;
+        size -= prefixSize;
+        exact = false;
+        return split;
+      }
+
+      if (current == null && mainSize > 0 && advanceMain()) {
+        if (mainSpliterator.estimateSize() == 0)
+          mainSpliterator = null;
+        return trySplit();
+      }
+    }
+
+    if (current == null)
+      return null;
+    Spliterator<E> split = current.trySplit();
+    if (split != null) {
+      size = Math.max(size - split.estimateSize(), 0);
+      exact = false;
+    }
+    return split;
+  }
+
+  @Override
+  public long estimateSize() {
+    return size;
+  }
+
+  @Override
+  public int characteristics() {
+    return exact ? ORDERED | SIZED : ORDERED;
+  }
+
+  /**
+   * Moves on to the next inner iterable.
+   * 
+   * @return false if there is none.
+   */
+  private boolean advanceMain() {
+    if (mainSpliterator == null)
+      return false;
+    boolean advanced = mainSpliterator.tryAdvance(new Consumer<Iterable<E>>() {
+      @Override
+      public void accept(Iterable<E> it) {
+        current = it.spliterator();
+      }
+    });
+    if (!advanced)
+      mainSpliterator = null;
+    return advanced;
+  }
+
+  private long estimatePrefix(long prefixMainSize, long mainSizeBeforeSplit) {
+    if (size == Long.MAX_VALUE || mainSizeBeforeSplit <= 0 || mainSizeBeforeSplit == Long.MAX_VALUE)
+      return size == Long.MAX_VALUE ? Long.MAX_VALUE : size / 2;
+    return (long) ((double) size * prefixMainSize / mainSizeBeforeSplit);
+  }
+}
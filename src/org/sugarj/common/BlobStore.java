@@ -0,0 +1,384 @@
+package org.sugarj.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sugarj.common.path.Path;
+
+/**
+ * A content-addressed file store. Blobs are keyed by the hex SHA-1 digest
+ * of their content (see {@link FileCommands#fileHash(Path)}) and live in
+ * <code>root/ab/cd/abcd...</code>, so identical content is stored once.
+ *
+ * Blobs are inserted atomically by hardlinking a complete temporary file
+ * into place, and are read-only. {@link #materialize} copies a blob into an
+ * output directory, so outputs are ordinary writable files.
+ *
+ * With a size cap, the least recently used blobs (by modification time,
+ * which every access updates) are deleted when the store grows beyond the
+ * cap.
+ *
+ * With {@link #setHardlink hardlinking}, {@link #materialize} links outputs
+ * to the blob instead, falling back to copying, e.g., across file systems.
+ * Such outputs share the blob's inode: they are read-only, must be replaced
+ * rather than written into, and their modification time changes whenever
+ * the blob is accessed, which defeats timestamp-based change detection such
+ * as {@link FileCommands#isModifiedLater}. Outputs linked to a deleted blob
+ * keep their content.
+ */
+public class BlobStore {
+
+  private static final Metrics.Counter STORED_BYTES = Metrics.counter("BlobStore.storedBytes");
+  private static final Metrics.Counter DEDUPLICATED_BYTES = Metrics.counter("BlobStore.deduplicatedBytes");
+  private static final Metrics.Counter COLLECTED_BYTES = Metrics.counter("BlobStore.collectedBytes");
+  private static final Metrics.Timer GC = Metrics.timer("BlobStore.gc");
+
+  /**
+   * The length of a hex SHA-1 digest.
+   */
+  private static final int KEY_LENGTH = 40;
+  private static final String TMP_PREFIX = ".tmp-";
+  /**
+   * Temporary files older than this are left over from crashed inserts.
+   */
+  private static final long STALE_TMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final java.nio.file.Path root;
+  private final long maxSize;
+  private volatile boolean hardlink;
+
+  /**
+   * Estimated total size of all blobs, or -1 until first needed.
+   */
+  private final AtomicLong size = new AtomicLong(-1);
+
+  /**
+   * @param maxSize
+   *          the size cap in bytes, or 0 for none.
+   */
+  public BlobStore(java.nio.file.Path root, long maxSize) {
+    this.root = root.toAbsolutePath().normalize();
+    this.maxSize = maxSize;
+  }
+
+  public java.nio.file.Path getRoot() {
+    return root;
+  }
+
+  /**
+   * Materialize outputs as hardlinks to the blobs instead of copies. Off by
+   * default; see the class comment for the consequences.
+   */
+  public BlobStore setHardlink(boolean hardlink) {
+    this.hardlink = hardlink;
+    return this;
+  }
+
+  public static String key(byte[] digest) {
+    return FileCommands.hexFileName("", digest);
+  }
+
+  private static boolean isKey(String key) {
+    if (key.length() != KEY_LENGTH)
+      return false;
+    for (int i = 0; i < KEY_LENGTH; i++) {
+      char c = key.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return where the blob with the given key is stored, whether or not it
+   *         exists.
+   * @throws IllegalArgumentException
+   *           if <code>key</code> is not a lower-case hex SHA-1 digest.
+   */
+  public java.nio.file.Path blobPath(String key) {
+    if (!isKey(key))
+      throw new IllegalArgumentException("Invalid blob key " + key);
+    return root.resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(key);
+  }
+
+  /**
+   * Stores the content of <code>file</code>.
+   *
+   * @return the key of the content.
+   */
+  public String put(java.nio.file.Path file) throws IOException {
+    // hash while copying, so that the file is read once
+    FileCommands.createDir(root);
+    java.nio.file.Path tmp = Files.createTempFile(root, TMP_PREFIX, "");
+    try {
+      byte[] digest;
+      try (InputStream in = Files.newInputStream(file); OutputStream out = Files.newOutputStream(tmp)) {
+        digest = FileCommands.streamHash(in, out);
+      }
+      String key = key(digest);
+      insert(tmp, key);
+      return key;
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Stores <code>content</code>.
+   *
+   * @return the key of the content.
+   */
+  public String put(byte[] content) throws IOException {
+    String key = key(FileCommands.streamHash(new ByteArrayInputStream(content)));
+    java.nio.file.Path blob = blobPath(key);
+    PathLocks.Handle lock = PathLocks.read(blob);
+    try {
+      if (touch(blob)) {
+        DEDUPLICATED_BYTES.add(content.length);
+        return key;
+      }
+    } finally {
+      lock.close();
+    }
+
+    FileCommands.createDir(root);
+    java.nio.file.Path tmp = Files.createTempFile(root, TMP_PREFIX, "");
+    try {
+      Files.write(tmp, content);
+      insert(tmp, key);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    return key;
+  }
+
+  /**
+   * Publishes the complete file <code>tmp</code> as the blob with the given
+   * key, unless the blob exists already. The caller deletes
+   * <code>tmp</code>.
+   */
+  private void insert(java.nio.file.Path tmp, String key) throws IOException {
+    java.nio.file.Path blob = blobPath(key);
+    long length = Files.size(tmp);
+    tmp.toFile().setReadOnly();
+    FileCommands.createDir(blob.getParent());
+
+    // holds off gc between finding an existing blob and touching it
+    PathLocks.Handle lock = PathLocks.read(blob);
+    try {
+      if (touch(blob) || !publish(tmp, blob)) {
+        DEDUPLICATED_BYTES.add(length);
+        return;
+      }
+    } finally {
+      lock.close();
+    }
+    STORED_BYTES.add(length);
+
+    if (maxSize > 0) {
+      long estimate = size.get() < 0 ? -1 : size.addAndGet(length);
+      if (estimate < 0 || estimate > maxSize)
+        gc();
+    }
+  }
+
+  /**
+   * Links <code>tmp</code> to <code>blob</code> without replacing an
+   * existing blob; {@link StandardCopyOption#ATOMIC_MOVE} would replace it
+   * silently on POSIX systems.
+   *
+   * @return false if the blob exists already.
+   */
+  private static boolean publish(java.nio.file.Path tmp, java.nio.file.Path blob) throws IOException {
+    try {
+      Files.createLink(blob, tmp);
+      return true;
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      // no hardlinks, fall back to a move that fails if the blob exists
+    }
+    try {
+      Files.move(tmp, blob);
+      return true;
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    }
+  }
+
+  public boolean contains(String key) {
+    return Files.isRegularFile(blobPath(key));
+  }
+
+  /**
+   * @return the stored blob, or null if there is none. Do not modify it.
+   */
+  public java.nio.file.Path get(String key) throws IOException {
+    java.nio.file.Path blob = blobPath(key);
+    return touch(blob) ? blob : null;
+  }
+
+  /**
+   * Makes <code>target</code> a file with the content of the given blob,
+   * replacing any existing file. The file is a writable copy unless
+   * {@link #setHardlink hardlinking} is on.
+   *
+   * @throws NoSuchFileException
+   *           if the store has no such blob.
+   */
+  public void materialize(String key, java.nio.file.Path target) throws IOException {
+    java.nio.file.Path blob = blobPath(key);
+    java.nio.file.Path parent = target.toAbsolutePath().getParent();
+    if (parent != null)
+      FileCommands.createDir(parent);
+
+    PathLocks.Handle lock = PathLocks.read(blob);
+    try {
+      if (!touch(blob))
+        throw new NoSuchFileException(blob.toString(), null, "no blob with key " + key);
+      Files.deleteIfExists(target);
+      if (hardlink) {
+        try {
+          Files.createLink(target, blob);
+          return;
+        } catch (UnsupportedOperationException | IOException e) {
+          // copy instead
+        }
+      }
+      // a new file rather than Files.copy, which would copy the blob's
+      // read-only permissions
+      try (InputStream in = Files.newInputStream(blob)) {
+        Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      lock.close();
+    }
+  }
+
+  /**
+   * Sets the modification time of <code>blob</code> to now, for LRU
+   * collection.
+   *
+   * @return whether the blob exists.
+   */
+  private static boolean touch(java.nio.file.Path blob) throws IOException {
+    try {
+      Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+      return true;
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  private static final class Blob {
+    final java.nio.file.Path file;
+    final long lastModified;
+    final long size;
+
+    Blob(java.nio.file.Path file, long lastModified, long size) {
+      this.file = file;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+  }
+
+  private List<Blob> scan() throws IOException {
+    final List<Blob> blobs = new ArrayList<>();
+    if (!Files.isDirectory(root))
+      return blobs;
+    final long staleBefore = System.currentTimeMillis() - STALE_TMP_MILLIS;
+    Files.walkFileTree(root, new SimpleFileVisitor<java.nio.file.Path>() {
+      @Override
+      public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) throws IOException {
+        String name = file.getFileName().toString();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        if (name.startsWith(TMP_PREFIX)) {
+          if (lastModified < staleBefore)
+            Files.deleteIfExists(file);
+        }
+        else if (!name.endsWith(".lock")) // see PathLocks#CROSS_PROCESS
+          blobs.add(new Blob(file, lastModified, attrs.size()));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(java.nio.file.Path file, IOException exc) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return blobs;
+  }
+
+  /**
+   * @return the total size of all blobs in bytes.
+   */
+  public long size() throws IOException {
+    long total = 0;
+    for (Blob b : scan())
+      total += b.size;
+    size.set(total);
+    return total;
+  }
+
+  /**
+   * Deletes the least recently used blobs until the store fits the size
+   * cap, and temporary files left over from crashed inserts.
+   *
+   * @return the number of bytes freed.
+   */
+  public synchronized long gc() throws IOException {
+    long start = GC.start();
+    List<Blob> blobs = scan();
+    long total = 0;
+    for (Blob b : blobs)
+      total += b.size;
+
+    long freed = 0;
+    if (maxSize > 0 && total > maxSize) {
+      Collections.sort(blobs, new Comparator<Blob>() {
+        @Override
+        public int compare(Blob b1, Blob b2) {
+          return Long.compare(b1.lastModified, b2.lastModified);
+        }
+      });
+      for (Blob b : blobs) {
+        if (total - freed <= maxSize)
+          break;
+        PathLocks.Handle lock = PathLocks.write(b.file);
+        try {
+          // skip blobs used since the scan
+          if (Files.getLastModifiedTime(b.file).toMillis() != b.lastModified)
+            continue;
+          b.file.toFile().setWritable(true);
+          if (Files.deleteIfExists(b.file))
+            freed += b.size;
+        } catch (NoSuchFileException e) {
+        } finally {
+          lock.close();
+        }
+      }
+    }
+
+    size.set(total - freed);
+    COLLECTED_BYTES.add(freed);
+    GC.stop(start);
+    return freed;
+  }
+}
@@ -0,0 +1,267 @@
+package org.sugarj.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The parts of a class file needed for incremental compilation: the types
+ * it references and hashes of its API.
+ *
+ * The API hash covers the class's modifiers, supertypes and non-private
+ * members, but not method bodies or private members. Compile-time constants
+ * are hashed separately, since the compiler inlines them into dependent
+ * classes without leaving a reference.
+ */
+class ClassFileInfo {
+  private static final int MAGIC = 0xCAFEBABE;
+
+  private static final int ACC_PRIVATE = 0x0002;
+  private static final int ACC_SUPER = 0x0020;
+
+  private static final int UTF8 = 1;
+  private static final int INTEGER = 3;
+  private static final int FLOAT = 4;
+  private static final int LONG = 5;
+  private static final int DOUBLE = 6;
+  private static final int CLASS = 7;
+  private static final int STRING = 8;
+  private static final int FIELDREF = 9;
+  private static final int METHODREF = 10;
+  private static final int INTERFACE_METHODREF = 11;
+  private static final int NAME_AND_TYPE = 12;
+  private static final int METHOD_HANDLE = 15;
+  private static final int METHOD_TYPE = 16;
+  private static final int DYNAMIC = 17;
+  private static final int INVOKE_DYNAMIC = 18;
+  private static final int MODULE = 19;
+  private static final int PACKAGE = 20;
+
+  /**
+   * Internal name, e.g., <code>org/sugarj/common/Log$TaskTimer</code>.
+   */
+  final String name;
+  /**
+   * Internal names of all types referenced from the constant pool, except
+   * this class itself.
+   */
+  final Set<String> references;
+  /**
+   * Internal names of the superclass, if any, and the interfaces.
+   */
+  final List<String> supertypes;
+  final byte[] apiHash;
+  final byte[] constantsHash;
+
+  private ClassFileInfo(String name, Set<String> references, List<String> supertypes, byte[] apiHash, byte[] constantsHash) {
+    this.name = name;
+    this.references = references;
+    this.supertypes = supertypes;
+    this.apiHash = apiHash;
+    this.constantsHash = constantsHash;
+  }
+
+  static ClassFileInfo parse(byte[] classFile) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+    if (in.readInt() != MAGIC)
+      throw new IOException("Not a class file");
+    in.readUnsignedShort(); // minor version
+    in.readUnsignedShort(); // major version
+
+    int count = in.readUnsignedShort();
+    int[] tags = new int[count];
+    Object[] values = new Object[count];
+    int[] refs = new int[count];
+    for (int i = 1; i < count; i++) {
+      int tag = in.readUnsignedByte();
+      tags[i] = tag;
+      switch (tag) {
+      case UTF8:
+        values[i] = in.readUTF();
+        break;
+      case INTEGER:
+        values[i] = in.readInt();
+        break;
+      case FLOAT:
+        values[i] = in.readFloat();
+        break;
+      case LONG:
+        values[i] = in.readLong();
+        i++;
+        break;
+      case DOUBLE:
+        values[i] = in.readDouble();
+        i++;
+        break;
+      case CLASS:
+      case STRING:
+      case METHOD_TYPE:
+      case MODULE:
+      case PACKAGE:
+        refs[i] = in.readUnsignedShort();
+        break;
+      case FIELDREF:
+      case METHODREF:
+      case INTERFACE_METHODREF:
+      case NAME_AND_TYPE:
+      case DYNAMIC:
+      case INVOKE_DYNAMIC:
+        refs[i] = in.readUnsignedShort();
+        in.readUnsignedShort();
+        break;
+      case METHOD_HANDLE:
+        in.readUnsignedByte();
+        in.readUnsignedShort();
+        break;
+      default:
+        throw new IOException("Unknown constant pool tag " + tag + " at index " + i);
+      }
+    }
+
+    int access = in.readUnsignedShort();
+    String name = (String) values[refs[in.readUnsignedShort()]];
+    int superIndex = in.readUnsignedShort();
+    String superName = superIndex == 0 ? "" : (String) values[refs[superIndex]];
+    List<String> interfaces = new ArrayList<>();
+    for (int i = in.readUnsignedShort(); i > 0; i--)
+      interfaces.add((String) values[refs[in.readUnsignedShort()]]);
+    Collections.sort(interfaces);
+
+    List<String> api = new ArrayList<>();
+    List<String> constants = new ArrayList<>();
+    readMembers(in, values, refs, tags, "field ", api, constants);
+    readMembers(in, values, refs, tags, "method ", api, null);
+    Collections.sort(api);
+    Collections.sort(constants);
+
+    String signature = readAttributes(in, values, refs, tags, null);
+
+    Set<String> references = new HashSet<>();
+    for (int i = 1; i < count; i++) {
+      if (tags[i] == CLASS)
+        addReference((String) values[refs[i]], references);
+      else if (tags[i] == UTF8)
+        addDescriptorReferences((String) values[i], references);
+    }
+    references.remove(name);
+
+    MessageDigest apiDigest = digest();
+    update(apiDigest, "class " + (access & ~ACC_SUPER) + " " + name + " " + superName + " " + interfaces + " " + signature);
+    for (String s : api)
+      update(apiDigest, s);
+    MessageDigest constantsDigest = digest();
+    for (String s : constants)
+      update(constantsDigest, s);
+
+    List<String> supertypes = new ArrayList<>(interfaces.size() + 1);
+    if (!superName.isEmpty())
+      supertypes.add(superName);
+    supertypes.addAll(interfaces);
+
+    return new ClassFileInfo(name, references, supertypes, apiDigest.digest(), constantsDigest.digest());
+  }
+
+  private static void readMembers(DataInputStream in, Object[] values, int[] refs, int[] tags, String kind, List<String> api, List<String> constants) throws IOException {
+    for (int i = in.readUnsignedShort(); i > 0; i--) {
+      int access = in.readUnsignedShort();
+      String name = (String) values[in.readUnsignedShort()];
+      String descriptor = (String) values[in.readUnsignedShort()];
+      StringBuilder extra = new StringBuilder();
+      String signature = readAttributes(in, values, refs, tags, extra);
+      if ((access & ACC_PRIVATE) != 0)
+        continue;
+      api.add(kind + access + " " + name + " " + descriptor + " " + signature + " " + extra);
+      if (constants != null && extra.length() > 0)
+        constants.add(name + " " + extra);
+    }
+  }
+
+  /**
+   * Reads an attribute table. Appends constant values and declared
+   * exceptions to <code>extra</code>, if not null.
+   *
+   * @return the generic signature, or the empty string.
+   */
+  private static String readAttributes(DataInputStream in, Object[] values, int[] refs, int[] tags, StringBuilder extra) throws IOException {
+    String signature = "";
+    for (int i = in.readUnsignedShort(); i > 0; i--) {
+      String name = (String) values[in.readUnsignedShort()];
+      int length = in.readInt();
+      if ("Signature".equals(name)) {
+        signature = (String) values[in.readUnsignedShort()];
+      }
+      else if (extra != null && "ConstantValue".equals(name)) {
+        int index = in.readUnsignedShort();
+        extra.append("= ").append(tags[index] == STRING ? "\"" + values[refs[index]] + "\"" : String.valueOf(values[index]));
+      }
+      else if (extra != null && "Exceptions".equals(name)) {
+        List<String> exceptions = new ArrayList<>();
+        for (int n = in.readUnsignedShort(); n > 0; n--)
+          exceptions.add((String) values[refs[in.readUnsignedShort()]]);
+        Collections.sort(exceptions);
+        extra.append("throws ").append(exceptions);
+      }
+      else
+        in.skipBytes(length);
+    }
+    return signature;
+  }
+
+  /**
+   * @param name
+   *          internal name or array descriptor.
+   */
+  private static void addReference(String name, Set<String> references) {
+    if (name.startsWith("["))
+      addDescriptorReferences(name, references);
+    else
+      references.add(name);
+  }
+
+  /**
+   * Adds the class names of all <code>Lname;</code> occurrences in a
+   * descriptor or signature. Other strings rarely contain this pattern;
+   * spurious references only cause extra recompilation.
+   */
+  private static void addDescriptorReferences(String s, Set<String> references) {
+    if (s.isEmpty())
+      return;
+    char first = s.charAt(0);
+    if (first != '(' && first != 'L' && first != '[' && first != '<')
+      return;
+
+    int i = 0;
+    while ((i = s.indexOf('L', i)) >= 0) {
+      int start = i + 1;
+      int end = start;
+      while (end < s.length() && s.charAt(end) != ';' && s.charAt(end) != '<')
+        end++;
+      if (end >= s.length())
+        return;
+      if (end > start)
+        references.add(s.substring(start, end));
+      i = end;
+    }
+  }
+
+  private static MessageDigest digest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void update(MessageDigest digest, String s) {
+    digest.update(s.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+  }
+}
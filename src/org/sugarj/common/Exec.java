@@ -4,12 +4,18 @@ import static org.sugarj.common.Log.log;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -29,6 +35,9 @@ import org.sugarj.common.util.ArrayUtils;
  */
 public class Exec {
 
+  private static final Metrics.Timer EXEC = Metrics.timer("Exec.run");
+  private static final Metrics.Counter EXEC_OUTPUT_BYTES = Metrics.counter("Exec.outputBytes");
+  
   private static ExecutorService ioThreadPool;
   
   private static synchronized ExecutorService ioThreadPool() {
@@ -54,8 +63,16 @@ public class Exec {
       Log.log.log("Executor was abruptly shut down. " + droppedTasks.size() + " tasks will not be executed.", Log.CORE);
     }
     ioThreadPool = null;
+    
+    if (PRINT_STATISTICS)
+      statistics.dump(Log.out);
   }
   
+  /**
+   * Resource usage of all commands executed so far, grouped by prefix.
+   */
+  public static final ExecStatistics statistics = new ExecStatistics();
+  
   /**
    * silences the main process
    */
@@ -80,18 +97,61 @@ public class Exec {
    * displays caching information
    */
   public static boolean CACHE_INFO = true;
+  
+  /**
+   * prints the collected {@link #statistics} on {@link #shutdown()}
+   */
+  public static boolean PRINT_STATISTICS = false;
 
   public static class ExecutionResult implements Serializable {
-    private static final long serialVersionUID = 3298797085346937563L;
+    private static final long serialVersionUID = -1254016393651284806L;
     
     public final String[] outMsgs;
     public final String[] errMsgs;
+    
+    public final int exitValue;
+    /**
+     * Wall-clock time in nanoseconds.
+     */
+    public final long wallTime;
+    /**
+     * CPU time in nanoseconds as last observed while the process was
+     * running, or -1 if the JVM cannot determine it.
+     */
+    public final long cpuTime;
+    public final long outBytes;
+    public final long errBytes;
+    /**
+     * Largest number of external commands running at the same time
+     * during this invocation, including this one.
+     */
+    public final int peakConcurrency;
+    
     public ExecutionResult(String[] outMsgs, String[] errMsgs) {
+      this(outMsgs, errMsgs, 0, 0, -1, 0, 0, 1);
+    }
+    
+    public ExecutionResult(String[] outMsgs, String[] errMsgs, int exitValue, long wallTime, long cpuTime, long outBytes, long errBytes, int peakConcurrency) {
       this.outMsgs = outMsgs;
       this.errMsgs = errMsgs;
+      this.exitValue = exitValue;
+      this.wallTime = wallTime;
+      this.cpuTime = cpuTime;
+      this.outBytes = outBytes;
+      this.errBytes = errBytes;
+      this.peakConcurrency = peakConcurrency;
     }
   }
   
+  /**
+   * Receives the output of a command line by line while the command is
+   * running. Lines passed to a listener are not collected in the
+   * {@link ExecutionResult}.
+   */
+  public static interface LineListener {
+    void line(String line);
+  }
+  
   public static class ExecutionError extends Error {
     private static final long serialVersionUID = -4924660269220590175L;
     public final String[] cmds;
@@ -121,14 +181,16 @@ public class Exec {
    * we need this.
    */
   private class StreamRunner implements Callable<List<String>> {
-    private final InputStream in;
+    private final CountingInputStream in;
     private String prefix;
+    private final LineListener listener;
 
     private List<String> msg = new ArrayList<String>();
     
-    public StreamRunner(InputStream in, String prefix) {
-      this.in = in;
+    public StreamRunner(InputStream in, String prefix, LineListener listener) {
+      this.in = new CountingInputStream(in);
       this.prefix = prefix;
+      this.listener = listener;
     }
 
     @Override
@@ -137,7 +199,12 @@ public class Exec {
         BufferedReader reader = new BufferedReader(new InputStreamReader(in));
         String line = null;
         while ((line = reader.readLine()) != null) {
-          msg.add(prefix + line);
+          if (listener != null)
+            listener.line(prefix + line);
+          else
+            synchronized (this) {
+              msg.add(prefix + line);
+            }
           if (!silent)
             log.logErr(prefix + line, Log.ALWAYS);
         }
@@ -148,10 +215,126 @@ public class Exec {
     }
     
     public synchronized List<String> peek() {
-      return msg;
+      return new ArrayList<String>(msg);
+    }
+    
+    public long bytes() {
+      return in.count;
+    }
+  }
+  
+  private static class CountingInputStream extends FilterInputStream {
+    private volatile long count;
+    
+    public CountingInputStream(InputStream in) {
+      super(in);
+    }
+    
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0)
+        count++;
+      return b;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0)
+        count += n;
+      return n;
+    }
+  }
+  
+  /**
+   * A currently running external command; guarded by {@link Exec#running}.
+   */
+  private static class Invocation {
+    int peakConcurrency;
+  }
+  
+  private static final Set<Invocation> running = new HashSet<>();
+  
+  private static Invocation started() {
+    synchronized (running) {
+      Invocation inv = new Invocation();
+      running.add(inv);
+      int n = running.size();
+      for (Invocation other : running)
+        if (other.peakConcurrency < n)
+          other.peakConcurrency = n;
+      return inv;
     }
   }
   
+  private static int finished(Invocation inv) {
+    synchronized (running) {
+      running.remove(inv);
+      return inv.peakConcurrency;
+    }
+  }
+  
+  /*
+   * ProcessHandle is only available from Java 9 on, so we look it up
+   * reflectively and report no CPU time on older JVMs.
+   */
+  private static final Method TO_HANDLE;
+  private static final Method HANDLE_INFO;
+  private static final Method TOTAL_CPU_DURATION;
+  static {
+    Method toHandle = null, info = null, totalCpu = null;
+    try {
+      toHandle = Process.class.getMethod("toHandle");
+      info = toHandle.getReturnType().getMethod("info");
+      totalCpu = info.getReturnType().getMethod("totalCpuDuration");
+    } catch (ReflectiveOperationException e) {
+      toHandle = null;
+    }
+    TO_HANDLE = toHandle;
+    HANDLE_INFO = info;
+    TOTAL_CPU_DURATION = totalCpu;
+  }
+  
+  /**
+   * @return the CPU time in nanoseconds the process consumed so far, or -1
+   *         if unknown (e.g., because the process has terminated already).
+   */
+  private static long cpuTime(Process p) {
+    if (TO_HANDLE == null)
+      return -1;
+    try {
+      Object info = HANDLE_INFO.invoke(TO_HANDLE.invoke(p));
+      Optional<?> duration = (Optional<?>) TOTAL_CPU_DURATION.invoke(info);
+      return duration.isPresent() ? ((Duration) duration.get()).toNanos() : -1;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return -1;
+    }
+  }
+  
+  /**
+   * Waits for the process to terminate while sampling its CPU time. The
+   * sampling interval grows from 1ms to 100ms, so that short-running
+   * commands are sampled at least once without polling long-running ones
+   * too often.
+   * 
+   * @return the last observed CPU time or -1.
+   */
+  private static long waitFor(Process p) throws InterruptedException {
+    if (TO_HANDLE == null) {
+      p.waitFor();
+      return -1;
+    }
+    
+    long cpuTime = cpuTime(p);
+    long interval = 1;
+    while (!p.waitFor(interval, TimeUnit.MILLISECONDS)) {
+      cpuTime = Math.max(cpuTime, cpuTime(p));
+      interval = Math.min(interval * 2, 100);
+    }
+    return cpuTime;
+  }
+  
   private boolean silent;
   
   public Exec(boolean silent) {
@@ -214,10 +397,24 @@ public class Exec {
     return runWithPrefix(prefix, null, cmds);
   }
   public ExecutionResult runWithPrefix(String prefix, File dir, String... cmds) {
+    return runWithPrefix(prefix, dir, null, null, cmds);
+  }
+  
+  /**
+   * Executes the given command, streaming its standard output and error
+   * to the given listeners instead of collecting them.
+   * 
+   * @param out
+   *        receives the lines of standard output, or null to collect them.
+   * @param err
+   *        receives the lines of standard error, or null to collect them.
+   */
+  public ExecutionResult runWithPrefix(String prefix, File dir, LineListener out, LineListener err, String... cmds) {
     int exitValue;
 
     StreamRunner errStreamLogger = null;
     StreamRunner outStreamLogger = null;
+    Invocation invocation = null;
     try {
       Runtime rt = Runtime.getRuntime();
 
@@ -225,10 +422,12 @@ public class Exec {
 //        log.beginExecution(prefix, cmds);
 //      }
 
+      long startTime = System.nanoTime();
       Process p = rt.exec(cmds, null, dir == null ? null : dir);
+      invocation = started();
 
-      errStreamLogger = new StreamRunner(p.getErrorStream(), "");
-      outStreamLogger = new StreamRunner(p.getInputStream(), "");
+      errStreamLogger = new StreamRunner(p.getErrorStream(), "", err);
+      outStreamLogger = new StreamRunner(p.getInputStream(), "", out);
 
       // We need to start these threads even if we don't care for
       // the output, because the process will block if we don't
@@ -239,18 +438,38 @@ public class Exec {
       Future<List<String>> errFuture = ioThreadPool.submit(errStreamLogger);
 
       // Wait for the process to finish
-      exitValue = p.waitFor();
+      long cpuTime = waitFor(p);
+      exitValue = p.exitValue();
       List<String> outMsgs = outFuture.get();
       List<String> errMsgs = errFuture.get();
+      long wallTime = System.nanoTime() - startTime;
+      int peakConcurrency = finished(invocation);
+      invocation = null;
+      
+      ExecutionResult result = new ExecutionResult(
+          outMsgs.toArray(new String[outMsgs.size()]), 
+          errMsgs.toArray(new String[errMsgs.size()]), 
+          exitValue, 
+          wallTime, 
+          cpuTime, 
+          outStreamLogger.bytes(), 
+          errStreamLogger.bytes(), 
+          peakConcurrency);
+      statistics.record(prefix, result);
+      EXEC.record(wallTime);
+      EXEC_OUTPUT_BYTES.add(result.outBytes + result.errBytes);
 
       if (exitValue != 0) {
-        throw new ExecutionError("Command failed", cmds, outMsgs.toArray(new String[outMsgs.size()]), errMsgs.toArray(new String[errMsgs.size()]));
+        throw new ExecutionError("Command failed", cmds, result.outMsgs, result.errMsgs);
       }
       
-      return new ExecutionResult(outMsgs.toArray(new String[outMsgs.size()]), errMsgs.toArray(new String[errMsgs.size()]));
+      return result;
     } catch (ExecutionError e) {
       throw e; 
     } catch (Throwable t) {
+      if (invocation != null)
+        finished(invocation);
+      
       List<String> outMsgs = outStreamLogger == null ? new ArrayList<String>() : outStreamLogger.peek();
       List<String> errMsgs = errStreamLogger == null ? new ArrayList<String>() : errStreamLogger.peek();
 
@@ -0,0 +1,144 @@
+package org.sugarj.common;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.sugarj.common.Exec.ExecutionResult;
+import org.sugarj.common.util.Histogram;
+
+/**
+ * Aggregates the resource usage of external commands run through
+ * {@link Exec}, grouped by the command prefix used for logging.
+ *
+ * Recording is lock-free, so that it can stay enabled for parallel builds.
+ * Use {@link #dump(PrintStream)} at the end of a build to see where
+ * subprocess time went.
+ */
+public class ExecStatistics {
+
+  public static class Entry {
+    public final String prefix;
+    /**
+     * Wall-clock time per invocation in nanoseconds.
+     */
+    public final Histogram wallTime = new Histogram();
+    private final LongAdder cpuTime = new LongAdder();
+    private final LongAdder outBytes = new LongAdder();
+    private final LongAdder errBytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicInteger peakConcurrency = new AtomicInteger();
+
+    private Entry(String prefix) {
+      this.prefix = prefix;
+    }
+
+    public long getInvocations() {
+      return wallTime.getCount();
+    }
+
+    /**
+     * @return accumulated CPU time in nanoseconds of those invocations for
+     *         which the JVM could determine the CPU time.
+     */
+    public long getCpuTime() {
+      return cpuTime.sum();
+    }
+
+    public long getOutBytes() {
+      return outBytes.sum();
+    }
+
+    public long getErrBytes() {
+      return errBytes.sum();
+    }
+
+    public long getFailures() {
+      return failures.sum();
+    }
+
+    public int getPeakConcurrency() {
+      return peakConcurrency.get();
+    }
+
+    private void record(ExecutionResult result) {
+      wallTime.record(result.wallTime);
+      if (result.cpuTime >= 0)
+        cpuTime.add(result.cpuTime);
+      outBytes.add(result.outBytes);
+      errBytes.add(result.errBytes);
+      if (result.exitValue != 0)
+        failures.increment();
+
+      int peak;
+      while (result.peakConcurrency > (peak = peakConcurrency.get()) && !peakConcurrency.compareAndSet(peak, result.peakConcurrency))
+        ;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  public void record(String prefix, ExecutionResult result) {
+    if (prefix == null)
+      prefix = "";
+
+    Entry entry = entries.get(prefix);
+    if (entry == null) {
+      Entry fresh = new Entry(prefix);
+      entry = entries.putIfAbsent(prefix, fresh);
+      if (entry == null)
+        entry = fresh;
+    }
+    entry.record(result);
+  }
+
+  public Entry getEntry(String prefix) {
+    return entries.get(prefix);
+  }
+
+  /**
+   * @return all entries, sorted by descending total wall-clock time.
+   */
+  public List<Entry> getEntries() {
+    List<Entry> list = new ArrayList<>(entries.values());
+    Collections.sort(list, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        return Long.compare(e2.wallTime.getTotal(), e1.wallTime.getTotal());
+      }
+    });
+    return list;
+  }
+
+  public void reset() {
+    entries.clear();
+  }
+
+  /**
+   * Prints one line per command prefix. Times are in milliseconds.
+   */
+  public void dump(PrintStream out) {
+    out.println(String.format("%-30s %8s %6s %10s %10s %8s %8s %8s %12s %5s", "command", "count", "fail", "wall", "cpu", "p50", "p99", "max", "bytes", "peak"));
+    for (Entry e : getEntries())
+      out.println(String.format("%-30s %8d %6d %10d %10d %8d %8d %8d %12d %5d",
+          e.prefix,
+          e.getInvocations(),
+          e.getFailures(),
+          millis(e.wallTime.getTotal()),
+          millis(e.getCpuTime()),
+          millis(e.wallTime.getPercentile(50)),
+          millis(e.wallTime.getPercentile(99)),
+          millis(e.wallTime.getMax()),
+          e.getOutBytes() + e.getErrBytes(),
+          e.getPeakConcurrency()));
+  }
+
+  private static long millis(long nanos) {
+    return nanos / 1000000;
+  }
+}
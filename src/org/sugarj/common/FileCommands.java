@@ -1,20 +1,19 @@
 package org.sugarj.common;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
@@ -23,16 +22,17 @@ import java.nio.file.InvalidPathException;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
@@ -57,14 +57,20 @@ public class FileCommands {
 
   public final static boolean DO_DELETE = true;
   public final static String FORWARD_SLASH = "/";
-  public final static String TMP_DIR;
-  static {
-    try {
-      TMP_DIR = File.createTempFile("tmp", "").getParent();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-  }
+  /**
+   * The system temp directory, as {@link File#createTempFile} uses it.
+   */
+  public final static String TMP_DIR = new File(System.getProperty("java.io.tmpdir"), "tmp").getParent();
+  
+  private static final Metrics.Timer READ = Metrics.timer("FileCommands.read");
+  private static final Metrics.Counter READ_BYTES = Metrics.counter("FileCommands.readBytes");
+  private static final Metrics.Timer WRITE = Metrics.timer("FileCommands.write");
+  private static final Metrics.Counter WRITE_BYTES = Metrics.counter("FileCommands.writeBytes");
+  private static final Metrics.Timer HASH = Metrics.timer("FileCommands.hash");
+  private static final Metrics.Counter HASH_BYTES = Metrics.counter("FileCommands.hashBytes");
+  private static final Metrics.Timer COPY = Metrics.timer("FileCommands.copyFile");
+  private static final Metrics.Timer LIST = Metrics.timer("FileCommands.listFilesRecursive");
+  private static final Metrics.Timer DELETE = Metrics.timer("FileCommands.delete");
 
   /**
    * 
@@ -74,38 +80,40 @@ public class FileCommands {
    * @throws IOException
    */
   public static Path newTempFile(String suffix) throws IOException {
-    File f = File.createTempFile("sugarj", suffix == null || suffix.isEmpty() ? suffix : "." + suffix);
-    final Path p = new AbsolutePath(f.getAbsolutePath());
+    return new AbsolutePath(createTempFile(suffix).toString());
+  }
 
-    return p;
+  /**
+   * 
+   * @param suffix
+   *          without dot "."
+   */
+  public static java.nio.file.Path createTempFile(String suffix) throws IOException {
+    return TempSpace.getDefault().createTempFile("sugarj", suffix == null || suffix.isEmpty() ? suffix : "." + suffix);
   }
 
+  /**
+   * Deletes the temporary file or directory of {@link TempSpace#getDefault()}
+   * that contains <code>file</code>, or else the one directly below
+   * {@link #TMP_DIR}, e.g., created before the default space was changed.
+   */
   public static void deleteTempFiles(Path file) throws IOException {
     if (file == null)
       return;
-
-    String parent = file.getFile().getParent();
-
-    if (parent == null)
-      return;
-    else if (parent.equals(TMP_DIR))
-      delete(file);
-    else
-      deleteTempFiles(new AbsolutePath(parent));
+    java.nio.file.Path p = file.toPath();
+    if (!TempSpace.getDefault().deleteEntry(p))
+      TempSpace.deleteEntry(Paths.get(TMP_DIR), p);
   }
 
   public static void delete(Path file) throws IOException {
     if (file == null)
       return;
-
-    if (file.getFile().listFiles() != null)
-      for (File f : file.getFile().listFiles())
-        FileCommands.delete(new AbsolutePath(f.getPath()));
-
-    file.getFile().delete();
+    delete(file.toPath());
   }
 
   public static void delete(File file) throws IOException {
+    if (file == null)
+      return;
     delete(file.toPath());
   }
 
@@ -113,6 +121,7 @@ public class FileCommands {
     if (file == null)
       return;
 
+    long start = DELETE.start();
     Files.walkFileTree(file, new FileVisitor<java.nio.file.Path>() {
 
       @Override
@@ -137,24 +146,34 @@ public class FileCommands {
         return FileVisitResult.CONTINUE;
       }
     });
+    DELETE.stop(start);
   }
 
   public static void copyFile(Path from, Path to, CopyOption... options) throws IOException {
-    Set<CopyOption> optSet = new HashSet<>();
-    for (CopyOption o : options)
-      optSet.add(o);
-    optSet.add(StandardCopyOption.REPLACE_EXISTING);
-
-    Files.copy(from.getFile().toPath(), to.getFile().toPath(), optSet.toArray(new CopyOption[optSet.size()]));
+    copyFile(from.toPath(), to.toPath(), options);
   }
 
   public static void copyFile(File from, File to, CopyOption... options) throws IOException {
-    Set<CopyOption> optSet = new HashSet<>();
-    for (CopyOption o : options)
-      optSet.add(o);
-    optSet.add(StandardCopyOption.REPLACE_EXISTING);
+    copyFile(from.toPath(), to.toPath(), options);
+  }
+
+  /**
+   * Copies <code>from</code> to <code>to</code>, replacing an existing
+   * target.
+   */
+  public static void copyFile(java.nio.file.Path from, java.nio.file.Path to, CopyOption... options) throws IOException {
+    long start = COPY.start();
+    Files.copy(from, to, withReplaceExisting(options));
+    COPY.stop(start);
+  }
 
-    Files.copy(from.toPath(), to.toPath(), optSet.toArray(new CopyOption[optSet.size()]));
+  private static CopyOption[] withReplaceExisting(CopyOption[] options) {
+    for (CopyOption o : options)
+      if (o == StandardCopyOption.REPLACE_EXISTING)
+        return options;
+    CopyOption[] result = Arrays.copyOf(options, options.length + 1);
+    result[options.length] = StandardCopyOption.REPLACE_EXISTING;
+    return result;
   }
 
   public static void copyFile(InputStream in, OutputStream out) throws IOException {
@@ -167,7 +186,7 @@ public class FileCommands {
 
   public static boolean acceptableAsAbsolute(String path) {
 
-    return new File(path).isAbsolute() || path.startsWith("./") || path.startsWith("." + File.separator) || path.equals(".");
+    return AbsolutePath.isAbsolute(path) || path.startsWith("./") || path.startsWith("." + File.separator) || path.equals(".");
 
   }
 
@@ -181,71 +200,168 @@ public class FileCommands {
    * @throws IOException
    */
   public static void writeToFile(File file, String content) throws IOException {
-    FileCommands.createFile(file);
-    FileOutputStream fos = new FileOutputStream(file);
-    fos.write(content.getBytes());
-    fos.close();
+    writeToFile(file.toPath(), content);
   }
 
+  /**
+   * Writes <code>content</code> in the platform's default charset, creating
+   * missing parent directories. The file is {@link #replace replaced}
+   * atomically, so readers never see partial content. Holds the
+   * {@link PathLocks#write write lock} of the file while writing.
+   */
   public static void writeToFile(java.nio.file.Path file, String content) throws IOException {
-    writeToFile(file.toFile(), content);
+    long start = WRITE.start();
+    createParentDirs(file);
+    byte[] bytes = content.getBytes();
+    PathLocks.Handle lock = PathLocks.write(file);
+    try {
+      replace(file, bytes);
+    } finally {
+      lock.close();
+    }
+    WRITE_BYTES.add(bytes.length);
+    WRITE.stop(start);
+  }
+
+  /**
+   * Writes <code>parts</code> to a temporary file next to <code>file</code>
+   * and renames it over <code>file</code>. The new file keeps the
+   * permissions of the old one; a symbolic link is followed. Callers hold
+   * the write lock.
+   */
+  private static void replace(java.nio.file.Path file, byte[]... parts) throws IOException {
+    java.nio.file.Path target = Files.isSymbolicLink(file) ? file.toRealPath() : file;
+    java.nio.file.Path tmp = createSibling(target);
+    try {
+      try (OutputStream out = Files.newOutputStream(tmp)) {
+        for (byte[] part : parts)
+          out.write(part);
+      }
+      if (Files.exists(target)) {
+        try {
+          Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+        } catch (UnsupportedOperationException e) {
+          // non-POSIX file systems have no permissions to keep
+        }
+      }
+      try {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+  }
+
+  /**
+   * Creates an empty, hidden file in the directory of <code>file</code>
+   * with the permissions the umask grants to new files.
+   */
+  private static java.nio.file.Path createSibling(java.nio.file.Path file) throws IOException {
+    while (true) {
+      java.nio.file.Path tmp = file.resolveSibling("." + file.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+      try {
+        return Files.createFile(tmp);
+      } catch (FileAlreadyExistsException e) {
+        // try another name
+      }
+    }
   }
 
   public static void writeLinesFile(File file, List<String> lines) throws IOException {
-    FileCommands.createFile(file);
-    BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+    writeLinesFile(file.toPath(), lines);
+  }
+
+  /**
+   * Writes <code>lines</code> separated by '\n' in the platform's default
+   * charset, creating missing parent directories.
+   */
+  public static void writeLinesFile(java.nio.file.Path file, List<String> lines) throws IOException {
+    StringBuilder content = new StringBuilder();
     Iterator<String> iter = lines.iterator();
     while (iter.hasNext()) {
-      writer.write(iter.next());
-      if (iter.hasNext()) {
-        writer.write("\n");
-      }
+      content.append(iter.next());
+      if (iter.hasNext())
+        content.append('\n');
     }
-    writer.flush();
-    writer.close();
+    writeToFile(file, content.toString());
   }
 
   public static void appendToFile(Path file, String content) throws IOException {
-    createFile(file);
-    FileOutputStream fos = new FileOutputStream(file.getFile(), true);
-    fos.write(content.getBytes());
-    fos.close();
+    appendToFile(file.toPath(), content);
+  }
+
+  public static void appendToFile(java.nio.file.Path file, String content) throws IOException {
+    long start = WRITE.start();
+    createParentDirs(file);
+    byte[] bytes = content.getBytes();
+    PathLocks.Handle lock = PathLocks.write(file);
+    try {
+      Files.write(file, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } finally {
+      lock.close();
+    }
+    WRITE_BYTES.add(bytes.length);
+    WRITE.stop(start);
   }
 
   public static byte[] readFileAsByteArray(Path file) throws IOException {
-    return readFileAsByteArray(file.getFile());
+    return readFileAsByteArray(file.toPath());
   }
 
   public static byte[] readFileAsByteArray(File file) throws IOException {
-    return Files.readAllBytes(file.toPath());
+    return readFileAsByteArray(file.toPath());
+  }
+
+  public static byte[] readFileAsByteArray(java.nio.file.Path file) throws IOException {
+    long start = READ.start();
+    byte[] bytes = Files.readAllBytes(file);
+    READ_BYTES.add(bytes.length);
+    READ.stop(start);
+    return bytes;
   }
 
   public static String readFileAsString(File file) throws IOException {
-    return readFileAsString(new AbsolutePath(file.getAbsolutePath()));
+    return readFileAsString(file.toPath());
   }
 
-  // from http://snippets.dzone.com/posts/show/1335
-  // Author: http://snippets.dzone.com/user/daph2001
   public static String readFileAsString(Path filePath) throws IOException {
-    StringBuilder fileData = new StringBuilder(1000);
-    BufferedReader reader = new BufferedReader(new FileReader(filePath.getFile()));
-    char[] buf = new char[1024];
-    int numRead = 0;
-    while ((numRead = reader.read(buf)) != -1)
-      fileData.append(buf, 0, numRead);
+    return readFileAsString(filePath.toPath());
+  }
 
-    reader.close();
-    return fileData.toString();
+  /**
+   * Reads the file in the platform's default charset.
+   */
+  public static String readFileAsString(java.nio.file.Path file) throws IOException {
+    return new String(readFileAsByteArray(file), Charset.defaultCharset());
   }
 
   public static List<String> readFileLines(File file) throws IOException {
-    BufferedReader reader = new BufferedReader(new FileReader(file));
+    return readFileLines(file.toPath());
+  }
+
+  /**
+   * Reads the lines of the file in the platform's default charset. Lines
+   * may be terminated by '\n', '\r' or "\r\n".
+   */
+  public static List<String> readFileLines(java.nio.file.Path file) throws IOException {
+    String content = readFileAsString(file);
     List<String> lines = new ArrayList<>();
-    String temp;
-    while ((temp = reader.readLine()) != null) {
-      lines.add(temp);
+    int start = 0;
+    int len = content.length();
+    for (int i = 0; i < len; i++) {
+      char c = content.charAt(i);
+      if (c == '\n' || c == '\r') {
+        lines.add(content.substring(start, i));
+        if (c == '\r' && i + 1 < len && content.charAt(i + 1) == '\n')
+          i++;
+        start = i + 1;
+      }
     }
-    reader.close();
+    if (start < len)
+      lines.add(content.substring(start));
     return lines;
   }
 
@@ -305,19 +421,36 @@ public class FileCommands {
     return paths;
   }
 
+  /**
+   * @return the entries of directory <code>dir</code>, in no particular
+   *         order.
+   */
+  public static List<java.nio.file.Path> listFiles(java.nio.file.Path dir) throws IOException {
+    long start = LIST.start();
+    try (DirectoryStream<java.nio.file.Path> stream = Files.newDirectoryStream(dir)) {
+      List<java.nio.file.Path> files = new ArrayList<>();
+      for (java.nio.file.Path p : stream)
+        files.add(p);
+      return files;
+    } finally {
+      LIST.stop(start);
+    }
+  }
+
   public static List<java.nio.file.Path> listFilesRecursive(java.nio.file.Path p) {
     return listFilesRecursive(p, null);
   }
 
   // Guarentees that list is mutable
   public static List<java.nio.file.Path> listFilesRecursive(java.nio.file.Path p, final FileFilter filter) {
+    long start = LIST.start();
     try {
       final List<java.nio.file.Path> files = new ArrayList<>();
       
       Files.walkFileTree(p, new SimpleFileVisitor<java.nio.file.Path>() {
         @Override
         public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) throws IOException {
-          if (file.toFile().isDirectory())
+          if (attrs.isDirectory())
             return FileVisitResult.CONTINUE;
           
           if (filter == null || filter.accept(file.toFile()))
@@ -330,6 +463,8 @@ public class FileCommands {
       return Collections.unmodifiableList(files);
     } catch (IOException e) {
       return Collections.emptyList();
+    } finally {
+      LIST.stop(start);
     }
   }
 
@@ -368,11 +503,11 @@ public class FileCommands {
   }
 
   public static File newTempDir() throws IOException {
-    final File f = File.createTempFile("SugarJ", "");
-    // need to delete the file, but want to reuse the filename
-    f.delete();
-    f.mkdir();
-    return f;
+    return createTempDir().toFile();
+  }
+
+  public static java.nio.file.Path createTempDir() throws IOException {
+    return TempSpace.getDefault().createTempDir("SugarJ");
   }
 
   public static File tryNewTempDir() {
@@ -384,40 +519,46 @@ public class FileCommands {
   }
 
   public static void prependToFile(Path file, String head) throws IOException {
-    Path tmp = newTempFile("");
-    file.getFile().renameTo(tmp.getFile());
-
-    FileInputStream in = new FileInputStream(tmp.getFile());
-    FileOutputStream out = new FileOutputStream(file.getFile());
-
-    out.write(head.getBytes());
-
-    int len;
-    byte[] b = new byte[1024];
-
-    while ((len = in.read(b)) > 0)
-      out.write(b, 0, len);
+    prependToFile(file.toPath(), head);
+  }
 
-    in.close();
-    out.close();
-    delete(tmp);
+  /**
+   * Holds the {@link PathLocks#write write lock} of the file while reading
+   * and rewriting it. The file is {@link #replace replaced} atomically.
+   */
+  public static void prependToFile(java.nio.file.Path file, String head) throws IOException {
+    byte[] headBytes = head.getBytes();
+    PathLocks.Handle lock = PathLocks.write(file);
+    try {
+      byte[] content = readFileAsByteArray(file);
+      long start = WRITE.start();
+      replace(file, headBytes, content);
+      WRITE_BYTES.add(headBytes.length + content.length);
+      WRITE.stop(start);
+    } finally {
+      lock.close();
+    }
   }
 
   public static void createFile(Path file) throws IOException {
-    File f = file.getFile();
-    if (f.getParentFile().mkdirs())
-      f.createNewFile();
+    createFile(file.toPath());
   }
 
   public static void createFile(java.nio.file.Path file) throws IOException {
     try {
-      Files.createDirectories(file.getParent());
+      createParentDirs(file);
       Files.createFile(file);
     } catch (FileAlreadyExistsException e) {
       // Is ok, then the file is there
     }
   }
 
+  private static void createParentDirs(java.nio.file.Path file) throws IOException {
+    java.nio.file.Path parent = file.toAbsolutePath().getParent();
+    if (parent != null && !Files.isDirectory(parent))
+      Files.createDirectories(parent);
+  }
+
   public static void createFile(File file) throws IOException {
     createFile(file.toPath());
   }
@@ -501,12 +642,32 @@ public class FileCommands {
     return f1.getFile().lastModified() > f2.getFile().lastModified();
   }
 
+  /**
+   * checks whether f1 was modified after f2. Missing files count as
+   * modified at time 0.
+   */
+  public static boolean isModifiedLater(java.nio.file.Path f1, java.nio.file.Path f2) {
+    return lastModified(f1) > lastModified(f2);
+  }
+
+  private static long lastModified(java.nio.file.Path file) {
+    try {
+      return Files.getLastModifiedTime(file).toMillis();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
   public static boolean fileExists(Path file) {
-    return file != null && file.getFile().exists() && file.getFile().isFile();
+    return file != null && file.getFile().isFile();
   }
 
   public static boolean fileExists(File file) {
-    return file != null && file.exists() && file.isFile();
+    return file != null && file.isFile();
+  }
+
+  public static boolean fileExists(java.nio.file.Path file) {
+    return file != null && Files.isRegularFile(file);
   }
 
   public static boolean exists(Path file) {
@@ -529,6 +690,19 @@ public class FileCommands {
     return prefix + (hash < 0 ? "1" + Math.abs(hash) : "0" + hash);
   }
 
+  /**
+   * @return <code>prefix</code> followed by <code>hash</code> in lower-case
+   *         hex, e.g., for digests from {@link #fileHash(Path)}.
+   */
+  public static String hexFileName(String prefix, byte[] hash) {
+    char[] chars = new char[hash.length * 2];
+    for (int i = 0; i < hash.length; i++) {
+      chars[2 * i] = Character.forDigit((hash[i] >> 4) & 0xF, 16);
+      chars[2 * i + 1] = Character.forDigit(hash[i] & 0xF, 16);
+    }
+    return prefix + new String(chars);
+  }
+
   public static String hashFileName(String prefix, Object o) {
     return hashFileName(prefix, o.hashCode());
   }
@@ -644,9 +818,7 @@ public class FileCommands {
   }
 
   public static byte[] fileHash(Path file) throws IOException {
-    try (FileInputStream inputStream = new FileInputStream(file.getFile())) {
-      return streamHash(inputStream);
-    }
+    return fileHash(file.toPath());
   }
 
   public static byte[] fileHash(java.nio.file.Path file) throws IOException {
@@ -656,19 +828,34 @@ public class FileCommands {
   }
 
   public static byte[] streamHash(InputStream inputStream) throws IOException {
+    return streamHash(inputStream, null);
+  }
+
+  /**
+   * Hashes the stream like {@link #streamHash(InputStream)} and writes what
+   * it reads to <code>copy</code>, unless null.
+   */
+  public static byte[] streamHash(InputStream inputStream, OutputStream copy) throws IOException {
     // http://www.codejava.net/coding/how-to-calculate-md5-and-sha-hash-values-in-java
     try {
+      long start = HASH.start();
       MessageDigest digest = MessageDigest.getInstance("SHA-1");
 
       byte[] bytesBuffer = new byte[1024];
       int bytesRead = -1;
+      long total = 0;
 
       while ((bytesRead = inputStream.read(bytesBuffer)) != -1) {
         digest.update(bytesBuffer, 0, bytesRead);
+        if (copy != null)
+          copy.write(bytesBuffer, 0, bytesRead);
+        total += bytesRead;
       }
 
       byte[] hashedBytes = digest.digest();
 
+      HASH_BYTES.add(total);
+      HASH.stop(start);
       return hashedBytes;
     } catch (NoSuchAlgorithmException e) {
       return null;
@@ -686,16 +873,12 @@ public class FileCommands {
   }
 
   public static boolean isEmptyFile(Path prog) throws IOException {
-    FileInputStream in = null;
+    return isEmptyFile(prog.toPath());
+  }
 
-    try {
-      in = new FileInputStream(prog.getFile());
-      if (in.read() == -1)
-        return true;
-      return false;
-    } finally {
-      if (in != null)
-        in.close();
+  public static boolean isEmptyFile(java.nio.file.Path prog) throws IOException {
+    try (InputStream in = Files.newInputStream(prog)) {
+      return in.read() == -1;
     }
   }
 
@@ -803,7 +986,7 @@ public class FileCommands {
   }
 
   public static boolean acceptable(String path) {
-    return new File(path).isAbsolute() || path.startsWith("./") || path.startsWith("." + File.separator) || path.equals(".");
+    return AbsolutePath.isAbsolute(path) || path.startsWith("./") || path.startsWith("." + File.separator) || path.equals(".");
   }
 
   public static File unpackJarfile(File jar) throws IOException {
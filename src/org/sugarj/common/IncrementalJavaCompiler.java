@@ -0,0 +1,426 @@
+package org.sugarj.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sugarj.common.JavaCommands.ClassOutput;
+import org.sugarj.common.errors.SourceCodeException;
+import org.sugarj.common.path.Path;
+
+/**
+ * One run of {@link JavaCommands#javacIncremental}.
+ */
+class IncrementalJavaCompiler {
+  private static final int VERSION = 2;
+
+  private static final class ClassEntry {
+    final String name;
+    final List<String> supertypes;
+    final byte[] apiHash;
+    final byte[] constantsHash;
+
+    ClassEntry(String name, List<String> supertypes, byte[] apiHash, byte[] constantsHash) {
+      this.name = name;
+      this.supertypes = supertypes;
+      this.apiHash = apiHash;
+      this.constantsHash = constantsHash;
+    }
+  }
+
+  private static final class SourceEntry {
+    final byte[] hash;
+    final List<ClassEntry> classes;
+    final Set<String> references;
+
+    SourceEntry(byte[] hash, List<ClassEntry> classes, Set<String> references) {
+      this.hash = hash;
+      this.classes = classes;
+      this.references = references;
+    }
+  }
+
+  private final Map<String, Path> sources = new LinkedHashMap<>();
+  private final Path sourcePath;
+  private final Path dir;
+  private final Path indexFile;
+  private final Path[] cp;
+
+  private String classpathKey;
+  private final Map<String, byte[]> hashes = new HashMap<>();
+  /**
+   * The index of the previous run, or null.
+   */
+  private Map<String, SourceEntry> old;
+  private final Map<String, SourceEntry> index = new HashMap<>();
+
+  IncrementalJavaCompiler(List<Path> sourceFiles, Path sourcePath, Path dir, Path indexFile, Path... cp) {
+    for (Path p : sourceFiles)
+      sources.put(key(p), p);
+    this.sourcePath = sourcePath;
+    this.dir = dir;
+    this.indexFile = indexFile;
+    this.cp = cp;
+  }
+
+  /**
+   * Identifies the classpath and its content. Jars contribute their size and
+   * modification time, directories the number, sizes and modification times
+   * of the files below them, so that the index is discarded when a class
+   * on the classpath changes. The output directory, which this compiler
+   * changes itself, contributes only its path.
+   */
+  private String classpathKey() throws IOException {
+    java.nio.file.Path output = dir.getFile().toPath();
+    StringBuilder key = new StringBuilder();
+    for (Path p : cp) {
+      java.nio.file.Path f = p.getFile().toPath();
+      key.append(f);
+      if (Files.isRegularFile(f))
+        key.append('@').append(Files.size(f)).append(':').append(Files.getLastModifiedTime(f).toMillis());
+      else if (Files.isDirectory(f) && !f.equals(output))
+        key.append('#').append(directoryFingerprint(f));
+      key.append(File.pathSeparatorChar);
+    }
+    return key.toString();
+  }
+
+  /**
+   * An order-independent digest of the relative names, sizes and
+   * modification times of all files below <code>dir</code>.
+   */
+  private static String directoryFingerprint(final java.nio.file.Path dir) throws IOException {
+    final long[] fingerprint = new long[2];
+    Files.walkFileTree(dir, new SimpleFileVisitor<java.nio.file.Path>() {
+      @Override
+      public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) {
+        long h = dir.relativize(file).toString().hashCode();
+        h = 31 * h + attrs.size();
+        h = 31 * h + attrs.lastModifiedTime().toMillis();
+        h *= 0x9E3779B97F4A7C15L;
+        fingerprint[0]++;
+        fingerprint[1] += h ^ (h >>> 29);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(java.nio.file.Path file, IOException exc) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return fingerprint[0] + ":" + Long.toHexString(fingerprint[1]);
+  }
+
+  List<Path> run() throws IOException, SourceCodeException {
+    classpathKey = classpathKey();
+    for (Map.Entry<String, Path> e : sources.entrySet())
+      hashes.put(e.getKey(), FileCommands.fileHash(e.getValue().toPath()));
+
+    old = read();
+    Set<String> toCompile = new LinkedHashSet<>();
+    Set<String> changedClasses = new HashSet<>();
+
+    if (old == null) {
+      toCompile.addAll(sources.keySet());
+    }
+    else {
+      for (Map.Entry<String, SourceEntry> e : old.entrySet()) {
+        if (!sources.containsKey(e.getKey())) {
+          deleteClassFiles(e.getValue());
+          for (ClassEntry c : e.getValue().classes)
+            changedClasses.add(c.name);
+        }
+      }
+      for (String source : sources.keySet()) {
+        SourceEntry entry = old.get(source);
+        if (entry == null || !Arrays.equals(entry.hash, hashes.get(source)) || !classFilesExist(entry))
+          toCompile.add(source);
+        else
+          index.put(source, entry);
+      }
+      toCompile.addAll(dependents(changedClasses, toCompile));
+    }
+
+    boolean full = old == null;
+    while (!toCompile.isEmpty()) {
+      changedClasses.clear();
+      boolean constantsChanged = compile(toCompile, changedClasses);
+
+      if (constantsChanged && !full) {
+        // dependents have inlined the old constant values without
+        // referencing their class, so we cannot tell which ones to rebuild
+        full = true;
+        Set<String> rest = new LinkedHashSet<>(sources.keySet());
+        rest.removeAll(toCompile);
+        toCompile = rest;
+      }
+      else
+        toCompile = dependents(changedClasses, toCompile);
+    }
+
+    write();
+
+    List<Path> classFiles = new ArrayList<>();
+    for (String source : sources.keySet())
+      for (ClassEntry c : index.get(source).classes)
+        classFiles.add(JavaCommands.classFile(dir, c.name));
+    return classFiles;
+  }
+
+  /**
+   * Compiles the given sources, writes their class files and updates the
+   * index.
+   *
+   * @param changedClasses
+   *          receives the names of classes whose API changed, appeared or
+   *          disappeared.
+   * @return whether a compile-time constant changed.
+   */
+  private boolean compile(Set<String> toCompile, Set<String> changedClasses) throws IOException, SourceCodeException {
+    Map<String, SourceEntry> previous = new HashMap<>();
+    List<Path> files = new ArrayList<>(toCompile.size());
+    for (String source : toCompile) {
+      SourceEntry entry = index.remove(source);
+      if (entry == null && old != null)
+        entry = old.get(source);
+      if (entry != null) {
+        previous.put(source, entry);
+        deleteClassFiles(entry);
+      }
+      files.add(sources.get(source));
+    }
+
+    List<ClassOutput> outputs;
+    try {
+      outputs = JavaCommands.compile(files, sourcePath, dir, cp);
+    } catch (SourceCodeException | IOException e) {
+      // the failed sources are not in the index and thus compiled next time
+      write();
+      throw e;
+    }
+    JavaCommands.write(dir, outputs);
+
+    Map<String, List<ClassEntry>> classes = new HashMap<>();
+    Map<String, Set<String>> references = new HashMap<>();
+    for (ClassOutput output : outputs) {
+      if (output.source == null)
+        continue;
+      String source = key(new File(output.source));
+      if (!toCompile.contains(source))
+        continue;
+
+      ClassFileInfo info = ClassFileInfo.parse(output.bytes.toByteArray());
+      List<ClassEntry> list = classes.get(source);
+      if (list == null) {
+        list = new ArrayList<>();
+        classes.put(source, list);
+        references.put(source, new HashSet<String>());
+      }
+      list.add(new ClassEntry(info.name, info.supertypes, info.apiHash, info.constantsHash));
+      references.get(source).addAll(info.references);
+    }
+
+    boolean constantsChanged = false;
+    for (String source : toCompile) {
+      List<ClassEntry> list = classes.containsKey(source) ? classes.get(source) : Collections.<ClassEntry>emptyList();
+      Set<String> refs = references.containsKey(source) ? references.get(source) : Collections.<String>emptySet();
+      index.put(source, new SourceEntry(hashes.get(source), list, refs));
+
+      Map<String, ClassEntry> before = new HashMap<>();
+      SourceEntry prev = previous.get(source);
+      if (prev != null)
+        for (ClassEntry c : prev.classes)
+          before.put(c.name, c);
+      for (ClassEntry c : list) {
+        ClassEntry b = before.remove(c.name);
+        if (b == null || !Arrays.equals(b.apiHash, c.apiHash))
+          changedClasses.add(c.name);
+        if (b != null && !Arrays.equals(b.constantsHash, c.constantsHash))
+          constantsChanged = true;
+      }
+      changedClasses.addAll(before.keySet());
+    }
+    return constantsChanged;
+  }
+
+  /**
+   * @return the indexed sources not in <code>exclude</code> that reference
+   *         any of <code>classes</code> or of their indexed subtypes, which
+   *         inherit the changed API.
+   */
+  private Set<String> dependents(Set<String> classes, Set<String> exclude) {
+    Set<String> result = new LinkedHashSet<>();
+    if (classes.isEmpty())
+      return result;
+    classes = withSubtypes(classes);
+    for (Map.Entry<String, SourceEntry> e : index.entrySet()) {
+      if (exclude.contains(e.getKey()))
+        continue;
+      for (String ref : e.getValue().references)
+        if (classes.contains(ref)) {
+          result.add(e.getKey());
+          break;
+        }
+    }
+    return result;
+  }
+
+  /**
+   * @return <code>classes</code> and all their direct and indirect
+   *         subtypes in the index.
+   */
+  private Set<String> withSubtypes(Set<String> classes) {
+    Map<String, List<String>> subtypes = new HashMap<>();
+    for (SourceEntry e : index.values())
+      for (ClassEntry c : e.classes)
+        for (String sup : c.supertypes) {
+          List<String> list = subtypes.get(sup);
+          if (list == null) {
+            list = new ArrayList<>();
+            subtypes.put(sup, list);
+          }
+          list.add(c.name);
+        }
+
+    Set<String> result = new HashSet<>(classes);
+    Deque<String> work = new ArrayDeque<>(classes);
+    while (!work.isEmpty()) {
+      List<String> list = subtypes.get(work.poll());
+      if (list != null)
+        for (String sub : list)
+          if (result.add(sub))
+            work.add(sub);
+    }
+    return result;
+  }
+
+  private boolean classFilesExist(SourceEntry entry) {
+    for (ClassEntry c : entry.classes)
+      if (!Files.isRegularFile(JavaCommands.classFile(dir, c.name).toPath()))
+        return false;
+    return true;
+  }
+
+  private void deleteClassFiles(SourceEntry entry) throws IOException {
+    for (ClassEntry c : entry.classes)
+      Files.deleteIfExists(JavaCommands.classFile(dir, c.name).toPath());
+  }
+
+  private static String key(Path p) {
+    return key(p.getFile());
+  }
+
+  private static String key(File f) {
+    return f.getAbsoluteFile().toPath().normalize().toString();
+  }
+
+  /**
+   * @return the persisted index, or null if there is none or it is unusable.
+   */
+  private Map<String, SourceEntry> read() {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile.toPath())))) {
+      if (in.readInt() != VERSION || !classpathKey.equals(readString(in)))
+        return null;
+
+      int sourceCount = in.readInt();
+      Map<String, SourceEntry> result = new HashMap<>(sourceCount * 4 / 3 + 1);
+      for (int i = 0; i < sourceCount; i++) {
+        String source = readString(in);
+        byte[] hash = readBytes(in);
+        int classCount = in.readInt();
+        List<ClassEntry> classes = new ArrayList<>(classCount);
+        for (int j = 0; j < classCount; j++) {
+          String name = readString(in);
+          int supertypeCount = in.readInt();
+          List<String> supertypes = new ArrayList<>(supertypeCount);
+          for (int k = 0; k < supertypeCount; k++)
+            supertypes.add(readString(in));
+          classes.add(new ClassEntry(name, supertypes, readBytes(in), readBytes(in)));
+        }
+        int refCount = in.readInt();
+        Set<String> refs = new HashSet<>(refCount * 4 / 3 + 1);
+        for (int j = 0; j < refCount; j++)
+          refs.add(readString(in));
+        result.put(source, new SourceEntry(hash, classes, refs));
+      }
+      return result;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      Log.log.logErr("Ignoring unreadable Java compilation index " + indexFile + ": " + e.getMessage(), Log.DETAIL);
+      return null;
+    }
+  }
+
+  private void write() throws IOException {
+    java.nio.file.Path target = indexFile.toPath();
+    java.nio.file.Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+    FileCommands.createFile(tmp);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(VERSION);
+      writeString(out, classpathKey);
+      out.writeInt(index.size());
+      for (Map.Entry<String, SourceEntry> e : index.entrySet()) {
+        SourceEntry entry = e.getValue();
+        writeString(out, e.getKey());
+        writeBytes(out, entry.hash);
+        out.writeInt(entry.classes.size());
+        for (ClassEntry c : entry.classes) {
+          writeString(out, c.name);
+          out.writeInt(c.supertypes.size());
+          for (String sup : c.supertypes)
+            writeString(out, sup);
+          writeBytes(out, c.apiHash);
+          writeBytes(out, c.constantsHash);
+        }
+        out.writeInt(entry.references.size());
+        for (String ref : entry.references)
+          writeString(out, ref);
+      }
+    }
+    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    writeBytes(out, s.getBytes("UTF-8"));
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return new String(readBytes(in), "UTF-8");
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0)
+      throw new IOException("Negative length " + length);
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
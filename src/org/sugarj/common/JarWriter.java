@@ -0,0 +1,476 @@
+package org.sugarj.common;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes the contents of a directory into a jar file without forking the
+ * <code>jar</code> tool.
+ *
+ * Output is reproducible: the manifest comes first, all other entries
+ * follow sorted by name, and all entries carry the same timestamp unless
+ * configured otherwise. Entries are compressed in parallel on an
+ * {@link Executor} and then written in order; only a bounded number of
+ * compressed entries is kept in memory. Jars that need zip64 extensions
+ * (more than 65535 entries or more than 4 GB) are written sequentially with
+ * a {@link JarOutputStream}.
+ */
+public class JarWriter {
+
+  public static enum Compression {
+    /**
+     * Store entries uncompressed, for fast local jars.
+     */
+    STORE,
+    DEFLATE
+  }
+
+  /**
+   * The earliest time representable in a zip file, used for all entries by
+   * default.
+   */
+  public static final LocalDateTime DEFAULT_TIMESTAMP = LocalDateTime.of(1980, 1, 1, 0, 0, 0);
+
+  private static final int LOCAL_HEADER = 0x04034b50;
+  private static final int CENTRAL_HEADER = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+  private static final int UTF8_FLAG = 0x0800;
+  private static final int JAR_MAGIC = 0xCAFE;
+  private static final int MAX_ENTRIES = 0xFFFF;
+  private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+  private Compression compression = Compression.DEFLATE;
+  private int level = Deflater.DEFAULT_COMPRESSION;
+  private Executor executor = ForkJoinPool.commonPool();
+  private LocalDateTime timestamp = DEFAULT_TIMESTAMP;
+  private Manifest manifest;
+
+  public JarWriter setCompression(Compression compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  /**
+   * @param level
+   *          a {@link Deflater} compression level.
+   */
+  public JarWriter setLevel(int level) {
+    this.level = level;
+    return this;
+  }
+
+  /**
+   * @param executor
+   *          compresses entries, or null to compress on the calling
+   *          thread.
+   */
+  public JarWriter setExecutor(Executor executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * @param timestamp
+   *          the modification time of all entries, or null to use the
+   *          modification times of the files.
+   */
+  public JarWriter setTimestamp(LocalDateTime timestamp) {
+    this.timestamp = timestamp;
+    return this;
+  }
+
+  /**
+   * @param manifest
+   *          the manifest to write, or null to use
+   *          <code>META-INF/MANIFEST.MF</code> of the directory if present
+   *          and a minimal manifest otherwise.
+   */
+  public JarWriter setManifest(Manifest manifest) {
+    this.manifest = manifest;
+    return this;
+  }
+
+  private static final class Entry {
+    final String name;
+    final Path file;
+    final long size;
+    final long lastModified;
+
+    Entry(String name, Path file, long size, long lastModified) {
+      this.name = name;
+      this.file = file;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    boolean isDirectory() {
+      return file == null;
+    }
+  }
+
+  /**
+   * An entry ready to be written: its data is compressed if the method is
+   * {@link ZipEntry#DEFLATED}.
+   */
+  private static final class Data {
+    final Entry entry;
+    final int method;
+    final long crc;
+    /**
+     * The uncompressed size of the content that was read, which differs
+     * from the entry's size if the file changed since it was listed.
+     */
+    final long size;
+    final byte[] bytes;
+
+    Data(Entry entry, int method, long crc, long size, byte[] bytes) {
+      this.entry = entry;
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Writes all files below <code>dir</code> into the jar file
+   * <code>output</code>, replacing it atomically.
+   */
+  public void write(Path dir, Path output) throws IOException {
+    List<Entry> entries = collect(dir);
+    byte[] manifestBytes = manifestBytes(dir);
+
+    long total = manifestBytes.length;
+    for (Entry e : entries)
+      total += e.size + 2 * e.name.length() + 128;
+    boolean zip64 = entries.size() + 2 > MAX_ENTRIES || total > MAX_SIZE;
+
+    Path parent = output.toAbsolutePath().getParent();
+    FileCommands.createDir(parent);
+    Path tmp = createTemp(parent, output.getFileName().toString());
+    if (Files.exists(output)) {
+      try {
+        Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(output));
+      } catch (UnsupportedOperationException e) {
+        // non-POSIX file systems have no permissions to keep
+      }
+    }
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16)) {
+      if (zip64)
+        writeSequential(entries, manifestBytes, out);
+      else
+        writeParallel(entries, manifestBytes, out);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tmp);
+      throw e;
+    }
+    Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Creates an empty file next to the output. Unlike
+   * {@link Files#createTempFile}, the file gets the permissions the umask
+   * grants to new files rather than owner-only ones.
+   */
+  private static Path createTemp(Path dir, String prefix) throws IOException {
+    while (true) {
+      Path tmp = dir.resolve(prefix + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+      try {
+        return Files.createFile(tmp);
+      } catch (FileAlreadyExistsException e) {
+        // try another name
+      }
+    }
+  }
+
+  private static List<Entry> collect(final Path dir) throws IOException {
+    final List<Entry> entries = new ArrayList<>();
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+        if (!d.equals(dir))
+          entries.add(new Entry(name(dir, d) + "/", null, 0, attrs.lastModifiedTime().toMillis()));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        String name = name(dir, file);
+        if (!attrs.isDirectory() && !name.equalsIgnoreCase(JarFile.MANIFEST_NAME))
+          entries.add(new Entry(name, file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        return e1.name.compareTo(e2.name);
+      }
+    });
+    // META-INF/ is written with the manifest
+    for (int i = 0; i < entries.size(); i++)
+      if (entries.get(i).name.equalsIgnoreCase("META-INF/")) {
+        entries.remove(i);
+        break;
+      }
+    return entries;
+  }
+
+  private static String name(Path dir, Path p) {
+    String name = dir.relativize(p).toString();
+    return p.getFileSystem().getSeparator().equals("/") ? name : name.replace(p.getFileSystem().getSeparator(), "/");
+  }
+
+  private byte[] manifestBytes(Path dir) throws IOException {
+    Manifest m = manifest;
+    if (m == null) {
+      Path file = dir.resolve(JarFile.MANIFEST_NAME);
+      if (Files.isRegularFile(file)) {
+        try (InputStream in = Files.newInputStream(file)) {
+          m = new Manifest(in);
+        }
+      }
+      else {
+        m = new Manifest();
+        m.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+      }
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    m.write(bytes);
+    return bytes.toByteArray();
+  }
+
+  private void writeParallel(List<Entry> entries, byte[] manifestBytes, OutputStream out) throws IOException {
+    ZipAssembler zip = new ZipAssembler(out);
+    Entry metaInf = new Entry("META-INF/", null, 0, 0);
+    Entry manifestEntry = new Entry(JarFile.MANIFEST_NAME, null, manifestBytes.length, 0);
+    zip.write(new Data(metaInf, ZipEntry.STORED, 0, 0, new byte[0]), true);
+    zip.write(compress(manifestEntry, manifestBytes), false);
+
+    int window = executor == null ? 1 : 2 * Math.max(1, Runtime.getRuntime().availableProcessors());
+    Deque<CompletableFuture<Data>> pending = new ArrayDeque<>(window + 1);
+    try {
+      for (final Entry e : entries) {
+        Supplier<Data> task = new Supplier<Data>() {
+          @Override
+          public Data get() {
+            try {
+              return compress(e, e.isDirectory() ? new byte[0] : Files.readAllBytes(e.file));
+            } catch (IOException ex) {
+              throw new CompletionException(ex);
+            }
+          }
+        };
+        pending.add(executor == null ? CompletableFuture.completedFuture(task.get()) : CompletableFuture.supplyAsync(task, executor));
+        if (pending.size() >= window)
+          writeNext(zip, pending);
+      }
+      while (!pending.isEmpty())
+        writeNext(zip, pending);
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw e;
+    } finally {
+      // only left over if an entry failed
+      for (CompletableFuture<Data> f : pending)
+        f.cancel(false);
+    }
+    zip.finish();
+  }
+
+  private void writeNext(ZipAssembler zip, Deque<CompletableFuture<Data>> pending) throws IOException {
+    zip.write(pending.poll().join(), false);
+  }
+
+  private Data compress(Entry e, byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    if (compression == Compression.STORE || bytes.length == 0)
+      return new Data(e, ZipEntry.STORED, crc.getValue(), bytes.length, bytes);
+
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, bytes.length / 2));
+      byte[] buf = new byte[8192];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(buf);
+        compressed.write(buf, 0, n);
+      }
+      return new Data(e, ZipEntry.DEFLATED, crc.getValue(), bytes.length, compressed.toByteArray());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private void writeSequential(List<Entry> entries, byte[] manifestBytes, OutputStream out) throws IOException {
+    JarOutputStream jar = new JarOutputStream(out);
+    jar.setLevel(level);
+    jar.setMethod(compression == Compression.STORE ? ZipEntry.STORED : ZipEntry.DEFLATED);
+
+    jar.putNextEntry(zipEntry(new Entry("META-INF/", null, 0, 0), new byte[0]));
+    jar.closeEntry();
+    jar.putNextEntry(zipEntry(new Entry(JarFile.MANIFEST_NAME, null, manifestBytes.length, 0), manifestBytes));
+    jar.write(manifestBytes);
+    jar.closeEntry();
+
+    for (Entry e : entries) {
+      byte[] bytes = e.isDirectory() ? new byte[0] : Files.readAllBytes(e.file);
+      jar.putNextEntry(zipEntry(e, bytes));
+      jar.write(bytes);
+      jar.closeEntry();
+    }
+    jar.finish();
+  }
+
+  private ZipEntry zipEntry(Entry e, byte[] bytes) {
+    ZipEntry entry = new ZipEntry(e.name);
+    entry.setTime(timestamp == null ? e.lastModified : timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+    if (compression == Compression.STORE || bytes.length == 0) {
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, bytes.length);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(bytes.length);
+      entry.setCompressedSize(bytes.length);
+      entry.setCrc(crc.getValue());
+    }
+    return entry;
+  }
+
+  /**
+   * Writes zip entries whose data is already compressed, followed by the
+   * central directory. Does not support zip64.
+   */
+  private final class ZipAssembler {
+    private final OutputStream out;
+    private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private long offset;
+    private int count;
+
+    ZipAssembler(OutputStream out) {
+      this.out = out;
+    }
+
+    void write(Data data, boolean jarMagic) throws IOException {
+      if (data.size > MAX_SIZE || offset + data.bytes.length > MAX_SIZE)
+        throw new IOException("Jar needs zip64 extensions, " + data.entry.name + " grew while writing");
+      byte[] name = data.entry.name.getBytes(StandardCharsets.UTF_8);
+      long dosTime = dosTime(data.entry);
+      int version = data.method == ZipEntry.DEFLATED ? 20 : 10;
+      int extra = jarMagic ? 4 : 0;
+
+      writeInt(out, LOCAL_HEADER);
+      writeShort(out, version);
+      writeShort(out, UTF8_FLAG);
+      writeShort(out, data.method);
+      writeInt(out, (int) dosTime);
+      writeInt(out, (int) data.crc);
+      writeInt(out, data.bytes.length);
+      writeInt(out, (int) data.size);
+      writeShort(out, name.length);
+      writeShort(out, extra);
+      out.write(name);
+      if (jarMagic) {
+        writeShort(out, JAR_MAGIC);
+        writeShort(out, 0);
+      }
+      out.write(data.bytes);
+
+      writeInt(central, CENTRAL_HEADER);
+      writeShort(central, 20);
+      writeShort(central, version);
+      writeShort(central, UTF8_FLAG);
+      writeShort(central, data.method);
+      writeInt(central, (int) dosTime);
+      writeInt(central, (int) data.crc);
+      writeInt(central, data.bytes.length);
+      writeInt(central, (int) data.size);
+      writeShort(central, name.length);
+      writeShort(central, extra);
+      writeShort(central, 0); // comment
+      writeShort(central, 0); // disk
+      writeShort(central, 0); // internal attributes
+      writeInt(central, 0); // external attributes
+      writeInt(central, (int) offset);
+      central.write(name);
+      if (jarMagic) {
+        writeShort(central, JAR_MAGIC);
+        writeShort(central, 0);
+      }
+
+      offset += 30 + name.length + extra + data.bytes.length;
+      count++;
+    }
+
+    void finish() throws IOException {
+      central.writeTo(out);
+      writeInt(out, END_OF_CENTRAL_DIRECTORY);
+      writeShort(out, 0);
+      writeShort(out, 0);
+      writeShort(out, count);
+      writeShort(out, count);
+      writeInt(out, central.size());
+      writeInt(out, (int) offset);
+      writeShort(out, 0);
+    }
+  }
+
+  private long dosTime(Entry e) {
+    LocalDateTime t = timestamp;
+    if (t == null)
+      t = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(e.lastModified), ZoneId.systemDefault());
+    if (t.getYear() < 1980)
+      t = DEFAULT_TIMESTAMP;
+    return (t.getYear() - 1980) << 25
+        | t.getMonthValue() << 21
+        | t.getDayOfMonth() << 16
+        | t.getHour() << 11
+        | t.getMinute() << 5
+        | t.getSecond() >> 1;
+  }
+
+  private static void writeShort(OutputStream out, int v) throws IOException {
+    out.write(v & 0xFF);
+    out.write((v >>> 8) & 0xFF);
+  }
+
+  private static void writeInt(OutputStream out, int v) throws IOException {
+    writeShort(out, v & 0xFFFF);
+    writeShort(out, (v >>> 16) & 0xFFFF);
+  }
+}
@@ -1,137 +1,364 @@
 package org.sugarj.common;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.sugarj.common.errors.DiagnosticTable;
+import org.sugarj.common.errors.SourceCodeException;
+import org.sugarj.common.path.AbsolutePath;
+import org.sugarj.common.path.Path;
+import org.sugarj.common.path.RelativePath;
 
 /**
  * 
  * Provides methods related to processing Java. Mainly, we provide
  * a method for compiling Java code.
  * 
+ * Java code is compiled in-process with the system Java compiler
+ * ({@link ToolProvider#getSystemJavaCompiler()}), which therefore requires
+ * a JDK. File managers and their classpath caches are reused across calls.
+ * 
  * @author Sebastian Erdweg <seba at informatik uni-marburg de>
  *
  */
-
-/*
- * Moritz: Temporarily disables this code to get rid to the ECJ dependency. Need
- * to find another location for JavaCommands where the ECJ dependency does not
- * hurt.
- */
 public class JavaCommands {
-//  
-//  public static List<Path> javac(Path sourceFile, Path dir, Collection<Path> cp) throws IOException, SourceCodeException {
-//    ArrayList<Path> sourceFiles = new ArrayList<Path>();
-//    sourceFiles.add(sourceFile);
-//    return javac(sourceFiles, dir, cp);
-//  }
-//  
-//  public static List<Path> javac(List<Path> sourceFiles, Path dir, Collection<Path> cp) throws IOException, SourceCodeException {
-//    return javac(sourceFiles, null, dir, cp.toArray(new Path[cp.size()]));
-//  }
-//
-//  public static List<Path> javac(List<Path> sourceFiles, Path sourcePath, Path dir, Collection<Path> cp) throws IOException, SourceCodeException {
-//    return javac(sourceFiles, sourcePath, dir, cp.toArray(new Path[cp.size()]));
-//  }
-//
-//  /**
-//   * @return list of generated class files.
-//   */
-//  public static List<Path> javac(List<Path> sourceFiles, Path sourcePath, Path dir, Path... cp) throws IOException, SourceCodeException {
-//    StringBuilder cpBuilder = new StringBuilder();
-//    
-//    for (int i = 0; i < cp.length; i++) {
-//      cpBuilder.append(FileCommands.toWindowsPath(cp[i].getAbsolutePath()));
-//      
-//      if (i < cp.length - 1)
-//        cpBuilder.append(File.pathSeparator);
-//    }
-//    
-//    if(cp.length > 0)
-//      cpBuilder.append(File.pathSeparator);
-//    
-//    cpBuilder.append(dir);
-//    
-//
-//    int argNum = 8 + (sourcePath == null ? 0 : 2);
-//    int next = 0;
-//    String[] cmd = new String[argNum + sourceFiles.size()];
-//    cmd[next++] = "-cp";
-//    cmd[next++] = cpBuilder.toString();
-//    cmd[next++] = "-d";
-//    cmd[next++] = FileCommands.toWindowsPath(dir.getAbsolutePath());
-//    cmd[next++] = "-source";
-//    cmd[next++] = "1.5";
-//    cmd[next++] = "-nowarn";
-//    cmd[next++] = "-verbose";
-//    if (sourcePath != null) {
-//      cmd[next++] = "-sourcepath";
-//      cmd[next++] = sourcePath.getAbsolutePath();
-//    }
-//      
-//    
-//    
-//    for (int i = 0; i < sourceFiles.size(); i++)
-//      cmd[i + next] = FileCommands.toWindowsPath(sourceFiles.get(i).getAbsolutePath());
-//    
-//    ByteArrayOutputStream stdOutBA = new ByteArrayOutputStream();
-//    ByteArrayOutputStream errOutBA = new ByteArrayOutputStream();
-//    
-//    // this is EJC
-//    boolean ok = BatchCompiler.compile(
-//        cmd,
-//        new PrintWriter(stdOutBA),
-//        new PrintWriter(errOutBA),
-//        null);
-//
-//    String stdOut = stdOutBA.toString();
-//    String errOut = errOutBA.toString();
-//    
-//    if (!ok) {
-//      List<Pair<SourceLocation, String>> errors = parseJavacErrors(errOut);
-//      if (!errors.isEmpty())
-//        throw new SourceCodeException(errors);
-//    }
-//    
-//    List<Path> generatedFiles = new LinkedList<Path>();
-//    int index = 0;
-//    while ((index = stdOut.indexOf("[writing", index)) >= 0) {
-//      index += "[writing".length();
-//      while (stdOut.charAt(index) == ' ')
-//        index++;
-//      int to = stdOut.indexOf(' ', index);
-//      String generatedPath = stdOut.substring(index, to);
-//      generatedFiles.add(new RelativePath(dir, generatedPath));
-//    }
-//    
-//    return generatedFiles;
-//  }
-//
-//  private final static String ERR_PAT = " ERROR in ";
-//  private final static String LINE_PAT = "(at line ";
-//  /**
-//   * @param stdOut
-//   */
-//  private static List<Pair<SourceLocation, String>> parseJavacErrors(String s) {
-//    List<Pair<SourceLocation, String>> errors = new LinkedList<Pair<SourceLocation,String>>();
-//    int index = 0;
-//    while ((index = s.indexOf(" ERROR in ", index)) >= 0) {
-//      int fileStart = index + ERR_PAT.length();
-//      int fileEnd = s.indexOf(LINE_PAT, fileStart) - 1;
-//      String file = s.substring(fileStart, fileEnd);
-//      int lineStart = fileEnd + LINE_PAT.length() + 1;
-//      int lineEnd = s.indexOf(")", lineStart);
-//      int line = Integer.parseInt(s.substring(lineStart, lineEnd));
-//      int colMarkerStart = s.indexOf("\n", s.indexOf("\n", lineEnd) + 1);
-//      int colMarkerEnd = s.indexOf("\n", colMarkerStart + 1);
-//      int colStart = s.indexOf("^", colMarkerStart);
-//      int colEnd = s.lastIndexOf("^", colMarkerEnd);
-//      int msgStart = colMarkerEnd + 1;
-//      int msgEnd = s.indexOf("\n", msgStart);
-//      String msg = s.substring(msgStart, msgEnd);
-//      errors.add(Pair.create(new SourceLocation(new AbsolutePath(file), line, line, colStart, colEnd), msg));
-//      index = msgEnd + 1;
-//    }
-//    return errors;
-//  }
-//
+  
+  private static final Metrics.Timer JAVAC = Metrics.timer("JavaCommands.javac");
+  private static final Metrics.Timer JAR = Metrics.timer("JavaCommands.jar");
+  
+  private static final class Compiler {
+    static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+    static final JavaFileManagerPool FILE_MANAGERS = COMPILER == null ? null : new JavaFileManagerPool(COMPILER);
+  }
+  
+  /**
+   * A class file produced by the compiler, kept in memory until the
+   * compilation succeeded.
+   */
+  static final class ClassOutput extends SimpleJavaFileObject {
+    final String className;
+    /**
+     * The source file the class was compiled from, if known.
+     */
+    final URI source;
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    
+    ClassOutput(String className, URI source) {
+      super(URI.create("mem:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+      this.className = className;
+      this.source = source;
+    }
+    
+    @Override
+    public OutputStream openOutputStream() {
+      bytes.reset();
+      return bytes;
+    }
+  }
+  
+  private static final class InMemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    final List<ClassOutput> outputs = new ArrayList<>();
+    
+    InMemoryFileManager(StandardJavaFileManager fileManager) {
+      super(fileManager);
+    }
+    
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className, Kind kind, FileObject sibling) throws IOException {
+      if (location != StandardLocation.CLASS_OUTPUT || kind != Kind.CLASS)
+        return super.getJavaFileForOutput(location, className, kind, sibling);
+      
+      ClassOutput output = new ClassOutput(className, sibling == null ? null : sibling.toUri());
+      synchronized (outputs) {
+        outputs.add(output);
+      }
+      return output;
+    }
+    
+    /**
+     * Does not close the underlying file manager, which goes back to the pool.
+     */
+    @Override
+    public void close() { }
+  }
+  
+  public static List<Path> javac(Path sourceFile, Path dir, Collection<Path> cp) throws IOException, SourceCodeException {
+    ArrayList<Path> sourceFiles = new ArrayList<Path>();
+    sourceFiles.add(sourceFile);
+    return javac(sourceFiles, dir, cp);
+  }
+  
+  public static List<Path> javac(List<Path> sourceFiles, Path dir, Collection<Path> cp) throws IOException, SourceCodeException {
+    return javac(sourceFiles, null, dir, cp.toArray(new Path[cp.size()]));
+  }
+
+  public static List<Path> javac(List<Path> sourceFiles, Path sourcePath, Path dir, Collection<Path> cp) throws IOException, SourceCodeException {
+    return javac(sourceFiles, sourcePath, dir, cp.toArray(new Path[cp.size()]));
+  }
+
+  /**
+   * Compiles <code>sourceFiles</code> into <code>dir</code>. Class files are
+   * only written if compilation succeeds.
+   * 
+   * @return list of generated class files.
+   * @throws SourceCodeException
+   *           if the sources contain errors.
+   */
+  public static List<Path> javac(List<Path> sourceFiles, Path sourcePath, Path dir, Path... cp) throws IOException, SourceCodeException {
+    return write(dir, compile(sourceFiles, sourcePath, dir, cp));
+  }
+  
+  /**
+   * Compiles only those of <code>sourceFiles</code> that changed since the
+   * last call with the same <code>index</code> file, and those that depend
+   * on classes whose API changed. The index records, for every source file,
+   * its hash, the classes it produced and the types these classes
+   * reference. Changes of compile-time constants, which are inlined into
+   * dependent classes, and changes of the classpath trigger a full rebuild.
+   * 
+   * Class files of sources that are no longer in <code>sourceFiles</code>
+   * are deleted.
+   * 
+   * @return list of class files of all <code>sourceFiles</code>.
+   * @throws SourceCodeException
+   *           if the sources contain errors. Sources that failed to compile
+   *           are compiled again by the next call.
+   */
+  public static List<Path> javacIncremental(List<Path> sourceFiles, Path sourcePath, Path dir, Path index, Path... cp) throws IOException, SourceCodeException {
+    return new IncrementalJavaCompiler(sourceFiles, sourcePath, dir, index, cp).run();
+  }
+  
+  /**
+   * Compiles all <code>units</code> and the units they depend on on the
+   * common fork/join pool.
+   * 
+   * @see #javac(Collection, Executor)
+   */
+  public static Map<JavaCompilationUnit, CompletableFuture<JavaCompilationUnit.Result>> javac(Collection<JavaCompilationUnit> units) {
+    return javac(units, ForkJoinPool.commonPool());
+  }
+  
+  /**
+   * Compiles all <code>units</code> and the units they depend on in
+   * parallel. A unit is compiled as soon as all its dependencies have been
+   * compiled successfully; units that do not depend on each other run
+   * concurrently. Units with the same classpath jars share cached file
+   * managers. Tasks run nested in the current {@link Log} task.
+   * 
+   * A unit whose compilation or dependency failed completes exceptionally
+   * with a {@link CompletionException} wrapping the
+   * {@link SourceCodeException} or {@link IOException}.
+   * 
+   * @return a future per unit, including dependencies not in
+   *         <code>units</code>.
+   * @throws IllegalArgumentException
+   *           if the dependencies are cyclic. Nothing is compiled then.
+   */
+  public static Map<JavaCompilationUnit, CompletableFuture<JavaCompilationUnit.Result>> javac(Collection<JavaCompilationUnit> units, Executor executor) {
+    Set<JavaCompilationUnit> acyclic = new HashSet<>();
+    Set<JavaCompilationUnit> visiting = new HashSet<>();
+    for (JavaCompilationUnit unit : units)
+      checkAcyclic(unit, acyclic, visiting);
+    
+    Map<JavaCompilationUnit, CompletableFuture<JavaCompilationUnit.Result>> futures = new LinkedHashMap<>();
+    Log.TaskContext context = Log.log.capture();
+    long scheduled = System.nanoTime();
+    for (JavaCompilationUnit unit : units)
+      schedule(unit, executor, context, scheduled, futures);
+    return futures;
+  }
+  
+  private static void checkAcyclic(JavaCompilationUnit unit, Set<JavaCompilationUnit> acyclic, Set<JavaCompilationUnit> visiting) {
+    if (acyclic.contains(unit))
+      return;
+    if (!visiting.add(unit))
+      throw new IllegalArgumentException("Cyclic dependency of compilation unit " + unit);
+    for (JavaCompilationUnit dep : unit.getDependencies())
+      checkAcyclic(dep, acyclic, visiting);
+    visiting.remove(unit);
+    acyclic.add(unit);
+  }
+  
+  private static CompletableFuture<JavaCompilationUnit.Result> schedule(
+      final JavaCompilationUnit unit, 
+      Executor executor, 
+      final Log.TaskContext context, 
+      final long scheduled, 
+      Map<JavaCompilationUnit, CompletableFuture<JavaCompilationUnit.Result>> futures) {
+    CompletableFuture<JavaCompilationUnit.Result> future = futures.get(unit);
+    if (future != null)
+      return future;
+    
+    List<CompletableFuture<JavaCompilationUnit.Result>> deps = new ArrayList<>();
+    for (JavaCompilationUnit dep : unit.getDependencies())
+      deps.add(schedule(dep, executor, context, scheduled, futures));
+    
+    future = CompletableFuture.allOf(deps.toArray(new CompletableFuture<?>[deps.size()])).thenApplyAsync(new Function<Void, JavaCompilationUnit.Result>() {
+      @Override
+      public JavaCompilationUnit.Result apply(Void v) {
+        Log.Scope scope = Log.log.enter(context);
+        long start = System.nanoTime();
+        try {
+          List<Path> classFiles = unit.compile();
+          return new JavaCompilationUnit.Result(unit, classFiles, start - scheduled, System.nanoTime() - start);
+        } catch (IOException | SourceCodeException e) {
+          throw new CompletionException(e);
+        } finally {
+          scope.close();
+        }
+      }
+    }, executor);
+    futures.put(unit, future);
+    return future;
+  }
+  
+  /**
+   * Compiles the given sources in memory.
+   * 
+   * @return the produced class files, not yet written.
+   */
+  static List<ClassOutput> compile(Collection<Path> sourceFiles, Path sourcePath, Path dir, Path... cp) throws IOException, SourceCodeException {
+    JavaCompiler compiler = Compiler.COMPILER;
+    if (compiler == null)
+      throw new IOException("No Java compiler available, javac requires a JDK");
+    
+    List<File> classpath = new ArrayList<>(cp.length + 1);
+    for (Path p : cp)
+      classpath.add(p.getFile());
+    classpath.add(dir.getFile());
+    
+    long start = JAVAC.start();
+    String key = JavaFileManagerPool.key(classpath);
+    StandardJavaFileManager standard = Compiler.FILE_MANAGERS.acquire(key, classpath);
+    boolean reuse = false;
+    try {
+      standard.setLocation(StandardLocation.SOURCE_PATH, sourcePath == null ? null : Collections.singletonList(sourcePath.getFile()));
+      
+      List<File> files = new ArrayList<>(sourceFiles.size());
+      for (Path p : sourceFiles)
+        files.add(p.getFile());
+      
+      InMemoryFileManager fileManager = new InMemoryFileManager(standard);
+      DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+      boolean ok = compiler.getTask(
+          null,
+          fileManager,
+          diagnostics,
+          Arrays.asList("-nowarn", "-proc:none", "-g"),
+          null,
+          standard.getJavaFileObjectsFromFiles(files)).call();
+      reuse = true;
+      
+      if (!ok)
+        reportErrors(diagnostics.getDiagnostics());
+      return fileManager.outputs;
+    } finally {
+      // a crashed compilation may leave the file manager in a bad state
+      if (reuse)
+        Compiler.FILE_MANAGERS.release(key, standard);
+      else
+        standard.close();
+      JAVAC.stop(start);
+    }
+  }
+  
+  /**
+   * Writes the class files to <code>dir</code>.
+   */
+  static List<Path> write(Path dir, List<ClassOutput> outputs) throws IOException {
+    List<Path> generatedFiles = new ArrayList<>(outputs.size());
+    for (ClassOutput output : outputs) {
+      RelativePath classFile = classFile(dir, output.className);
+      java.nio.file.Path target = classFile.toPath();
+      Files.createDirectories(target.getParent());
+      Files.write(target, output.bytes.toByteArray());
+      generatedFiles.add(classFile);
+    }
+    return generatedFiles;
+  }
+  
+  /**
+   * @param className
+   *          binary name, with '.' or '/' as package separator.
+   */
+  static RelativePath classFile(Path dir, String className) {
+    return new RelativePath(dir, className.replace('.', '/') + Kind.CLASS.extension);
+  }
+  
+  /**
+   * Closes the cached file managers, e.g., to release open jar files.
+   */
+  public static void clearCaches() {
+    if (Compiler.FILE_MANAGERS != null)
+      Compiler.FILE_MANAGERS.clear();
+  }
+  
+  /**
+   * @return the file of <code>source</code>, or its name if it is not
+   *         stored in a file.
+   */
+  private static Path sourcePath(JavaFileObject source) {
+    URI uri = source.toUri();
+    if ("file".equals(uri.getScheme()))
+      return new AbsolutePath(new File(uri).getAbsolutePath());
+    return new AbsolutePath(new File(source.getName()).getAbsolutePath());
+  }
+  
+  private static void reportErrors(List<Diagnostic<? extends JavaFileObject>> diagnostics) throws IOException, SourceCodeException {
+    DiagnosticTable errors = new DiagnosticTable();
+    StringBuilder other = new StringBuilder();
+    for (Diagnostic<? extends JavaFileObject> d : diagnostics) {
+      if (d.getKind() != Diagnostic.Kind.ERROR)
+        continue;
+      
+      String msg = d.getMessage(null);
+      if (d.getSource() == null || d.getLineNumber() == Diagnostic.NOPOS) {
+        other.append(msg).append('\n');
+        continue;
+      }
+      
+      int line = (int) d.getLineNumber();
+      int column = (int) d.getColumnNumber();
+      int length = d.getStartPosition() == Diagnostic.NOPOS || d.getEndPosition() == Diagnostic.NOPOS ? 0 : (int) (d.getEndPosition() - d.getStartPosition());
+      Path file = sourcePath(d.getSource());
+      errors.add(file, line, line, column, column + Math.max(length - 1, 0), msg);
+    }
+    
+    if (!errors.isEmpty())
+      throw new SourceCodeException(errors);
+    throw new IOException("Java compilation failed" + (other.length() == 0 ? "" : ":\n" + other));
+  }
+  
 //  /**
 //   * Runs a compiled java program, linking against  {@code strategoxt.jar},
 //   * and providing a bunch of parameters. 
@@ -156,18 +383,22 @@ public class JavaCommands {
 //    
 //    new Exec(true).runWithPrefix(main, cmd);
 //  }
-//  
-//  
-//  public static void jar(Path dir, Path output) {
-//    String[] cmd = {
-//        "jar",
-//        "cf",
-//        output.getAbsolutePath(),
-//        "-C", dir.getAbsolutePath(),
-//        "."
-//        };
-//    
-//    Exec.run(cmd);
-//  }
-//  
+  
+  /**
+   * Packs the contents of <code>dir</code> into the jar file
+   * <code>output</code> with deflate compression and reproducible entry
+   * order and timestamps.
+   */
+  public static void jar(Path dir, Path output) throws IOException {
+    jar(dir, output, new JarWriter());
+  }
+  
+  public static void jar(Path dir, Path output, JarWriter writer) throws IOException {
+    long start = JAR.start();
+    try {
+      writer.write(dir.toPath(), output.toPath());
+    } finally {
+      JAR.stop(start);
+    }
+  }
 }
@@ -0,0 +1,105 @@
+package org.sugarj.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.sugarj.common.errors.SourceCodeException;
+import org.sugarj.common.path.Path;
+
+/**
+ * A set of Java sources compiled together into one output directory, as
+ * scheduled by {@link JavaCommands#javac(java.util.Collection)}. The output
+ * directories of the units this unit depends on are added to its classpath.
+ */
+public class JavaCompilationUnit {
+
+  public static class Result {
+    public final JavaCompilationUnit unit;
+    public final List<Path> classFiles;
+    /**
+     * Time between scheduling and the start of compilation in nanoseconds,
+     * i.e., time spent waiting for dependencies and a free thread.
+     */
+    public final long waitTime;
+    /**
+     * Time spent compiling in nanoseconds.
+     */
+    public final long compileTime;
+
+    Result(JavaCompilationUnit unit, List<Path> classFiles, long waitTime, long compileTime) {
+      this.unit = unit;
+      this.classFiles = classFiles;
+      this.waitTime = waitTime;
+      this.compileTime = compileTime;
+    }
+  }
+
+  public final String name;
+  public final List<Path> sourceFiles;
+  public final Path sourcePath;
+  public final Path dir;
+  public final List<Path> classpath;
+  private final Set<JavaCompilationUnit> dependencies = new LinkedHashSet<>();
+  private Path index;
+
+  /**
+   * @param sourcePath
+   *          may be null.
+   */
+  public JavaCompilationUnit(String name, List<Path> sourceFiles, Path sourcePath, Path dir, List<Path> classpath) {
+    this.name = name;
+    this.sourceFiles = Collections.unmodifiableList(new ArrayList<>(sourceFiles));
+    this.sourcePath = sourcePath;
+    this.dir = dir;
+    this.classpath = Collections.unmodifiableList(new ArrayList<>(classpath));
+  }
+
+  /**
+   * Declares that this unit needs the classes of <code>units</code>.
+   */
+  public JavaCompilationUnit dependsOn(JavaCompilationUnit... units) {
+    for (JavaCompilationUnit unit : units)
+      if (unit != this)
+        dependencies.add(unit);
+    return this;
+  }
+
+  public Set<JavaCompilationUnit> getDependencies() {
+    return Collections.unmodifiableSet(dependencies);
+  }
+
+  /**
+   * Compiles this unit incrementally, keeping the index in the given file.
+   *
+   * @see JavaCommands#javacIncremental(List, Path, Path, Path, Path...)
+   */
+  public JavaCompilationUnit incremental(Path index) {
+    this.index = index;
+    return this;
+  }
+
+  public Path getIndex() {
+    return index;
+  }
+
+  List<Path> compile() throws IOException, SourceCodeException {
+    List<Path> cp = new ArrayList<>(classpath.size() + dependencies.size());
+    cp.addAll(classpath);
+    for (JavaCompilationUnit dep : dependencies)
+      cp.add(dep.dir);
+    Path[] cpArray = cp.toArray(new Path[cp.size()]);
+
+    if (index != null)
+      return JavaCommands.javacIncremental(sourceFiles, sourcePath, dir, index, cpArray);
+    return JavaCommands.javac(sourceFiles, sourcePath, dir, cpArray);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,122 @@
+package org.sugarj.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * Keeps {@link StandardJavaFileManager}s alive between compilations, so
+ * that their caches of classpath jars survive. Managers are pooled per set
+ * of jars on the classpath; the key includes size and modification time of
+ * each jar, so that managers are not reused after a jar changed. Classpath
+ * directories, such as the output directories of other compilation units,
+ * are not part of the key, so compilations that only differ in those share
+ * managers. The class path is set on every acquisition; javac keeps its
+ * opened jars across such changes.
+ *
+ * Each manager is used by at most one compilation at a time.
+ */
+class JavaFileManagerPool {
+  private static final int MAX_IDLE_PER_CLASSPATH = 4;
+  private static final int MAX_CLASSPATHS = 16;
+
+  private final JavaCompiler compiler;
+  private final Map<String, Queue<StandardJavaFileManager>> idle = new ConcurrentHashMap<>();
+
+  JavaFileManagerPool(JavaCompiler compiler) {
+    this.compiler = compiler;
+  }
+
+  /**
+   * @param key
+   *          the {@link #key(List)} of <code>classpath</code>.
+   * @return a file manager whose class path is set to
+   *         <code>classpath</code>. Must be returned by
+   *         {@link #release(String, StandardJavaFileManager)} with the same
+   *         key, even if a jar on the class path changed in between.
+   */
+  StandardJavaFileManager acquire(String key, List<File> classpath) throws IOException {
+    Queue<StandardJavaFileManager> queue = idle.get(key);
+    StandardJavaFileManager manager = queue == null ? null : queue.poll();
+    if (manager == null)
+      manager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+    manager.setLocation(StandardLocation.CLASS_PATH, classpath);
+    return manager;
+  }
+
+  void release(String key, StandardJavaFileManager manager) {
+    Queue<StandardJavaFileManager> queue = idle.get(key);
+    if (queue == null) {
+      if (idle.size() >= MAX_CLASSPATHS)
+        evictOne();
+      Queue<StandardJavaFileManager> fresh = new ConcurrentLinkedQueue<>();
+      queue = idle.putIfAbsent(key, fresh);
+      if (queue == null)
+        queue = fresh;
+    }
+
+    // the size check is racy, which at worst keeps a few more managers
+    if (queue.size() < MAX_IDLE_PER_CLASSPATH)
+      queue.offer(manager);
+    else
+      close(manager);
+  }
+
+  /**
+   * Closes all idle file managers.
+   */
+  void clear() {
+    for (Iterator<Queue<StandardJavaFileManager>> it = idle.values().iterator(); it.hasNext();) {
+      closeAll(it.next());
+      it.remove();
+    }
+  }
+
+  private void evictOne() {
+    Iterator<Map.Entry<String, Queue<StandardJavaFileManager>>> it = idle.entrySet().iterator();
+    if (it.hasNext()) {
+      Queue<StandardJavaFileManager> queue = it.next().getValue();
+      it.remove();
+      closeAll(queue);
+    }
+  }
+
+  private static void closeAll(Queue<StandardJavaFileManager> queue) {
+    StandardJavaFileManager manager;
+    while ((manager = queue.poll()) != null)
+      close(manager);
+  }
+
+  private static void close(StandardJavaFileManager manager) {
+    try {
+      manager.close();
+    } catch (IOException e) {
+      // nothing to do, the manager is discarded anyway
+    }
+  }
+
+  /**
+   * @return identifies the jars on <code>classpath</code> and their
+   *         versions.
+   */
+  static String key(List<File> classpath) {
+    StringBuilder key = new StringBuilder();
+    for (File f : classpath)
+      if (f.isFile()) {
+        key.append(f.getPath());
+        key.append('@').append(f.length()).append(':').append(f.lastModified());
+        key.append(File.pathSeparatorChar);
+      }
+    return key.toString();
+  }
+}
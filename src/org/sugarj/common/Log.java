@@ -1,7 +1,17 @@
 package org.sugarj.common;
 
 import java.io.PrintStream;
-import java.util.LinkedList;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.sugarj.common.trace.TraceSink;
+import org.sugarj.common.util.AsyncPrinter;
+import org.sugarj.common.util.AsyncPrinter.OverflowPolicy;
 
 public class Log {
   /**
@@ -24,37 +34,229 @@ public class Log {
   
   public static final Log log = new Log();
   
-  private LinkedList<String> tasks = new LinkedList<String>();
-  private LinkedList<Long> timings = new LinkedList<Long>();
-  private LinkedList<Boolean> lightweight = new LinkedList<Boolean>();
-  private int silent = -1;
-  private int loglevel = CORE;
+  /**
+   * Ends the task it was obtained for when closed. Use with
+   * try-with-resources.
+   * 
+   * @see Log#timeTask(String, int)
+   */
+  public static interface TaskTimer extends AutoCloseable {
+    @Override
+    public void close();
+  }
+  
+  /**
+   * The tasks a thread began and has not ended yet. Tasks are stored in
+   * parallel primitive arrays, so that beginning and ending a task does not
+   * allocate. A stack entered through a {@link TaskContext} continues the
+   * task tree of another thread below <code>baseDepth</code> tasks, as
+   * children of the task <code>baseParent</code>.
+   */
+  private static final class TaskStack {
+    final int baseDepth;
+    /**
+     * The id of the task the bottom task of this stack is nested in, or 0.
+     */
+    final long baseParent;
+    
+    String[] names = new String[16];
+    long[] ids = new long[16];
+    int[] levels = new int[16];
+    long[] startTimes = new long[16];
+    /**
+     * Whether the task is displayed at the current logging level.
+     */
+    boolean[] displayed = new boolean[16];
+    boolean[] inline = new boolean[16];
+    int size;
+    
+    /**
+     * The index of the last inline task of this stack that was registered
+     * in {@link Log#pendingInline}.
+     */
+    int inlineIndex = -1;
+    
+    TaskStack(int baseDepth, long baseParent) {
+      this.baseDepth = baseDepth;
+      this.baseParent = baseParent;
+    }
+    
+    int depth() {
+      return baseDepth + size;
+    }
+    
+    /**
+     * @return the id of the innermost open task, or 0 if there is none.
+     */
+    long top() {
+      return size == 0 ? baseParent : ids[size - 1];
+    }
+    
+    void push(String name, int level, long startTime, boolean displayed, boolean inline) {
+      if (size == names.length) {
+        int capacity = 2 * size;
+        names = Arrays.copyOf(names, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        levels = Arrays.copyOf(levels, capacity);
+        startTimes = Arrays.copyOf(startTimes, capacity);
+        this.displayed = Arrays.copyOf(this.displayed, capacity);
+        this.inline = Arrays.copyOf(this.inline, capacity);
+      }
+      names[size] = name;
+      ids[size] = nextTaskId.incrementAndGet();
+      levels[size] = level;
+      startTimes[size] = startTime;
+      this.displayed[size] = displayed;
+      this.inline[size] = inline;
+      size++;
+    }
+  }
+  
+  private static final AtomicLong nextTaskId = new AtomicLong();
+  
+  private static final TaskTimer NO_TASK = new TaskTimer() {
+    @Override
+    public void close() {
+    }
+  };
+  
+  /**
+   * Ends the task begun by {@link Log#timeTask(String, int)}, and any
+   * tasks nested in it that are still open, e.g., because an exception
+   * skipped their end. Closing it again, on another thread or after the
+   * task was ended otherwise has no effect.
+   */
+  private final class TaskHandle implements TaskTimer {
+    private final TaskStack stack;
+    /**
+     * The size of the stack including the task.
+     */
+    private final int size;
+    private final long id;
+    private boolean closed;
+    
+    TaskHandle(TaskStack stack, int size) {
+      this.stack = stack;
+      this.size = size;
+      this.id = stack.ids[size - 1];
+    }
+    
+    @Override
+    public void close() {
+      if (closed)
+        return;
+      closed = true;
+      if (stacks.get() != stack || stack.size < size || stack.ids[size - 1] != id)
+        return;
+      while (stack.size > size)
+        endTask("aborted");
+      endTask();
+    }
+  }
+  
+  /**
+   * A position in the task tree that can be handed to another thread.
+   */
+  public static final class TaskContext {
+    private final int depth;
+    /**
+     * The id of the captured task, or 0 if there was none.
+     */
+    private final long parent;
+    
+    private TaskContext(int depth, long parent) {
+      this.depth = depth;
+      this.parent = parent;
+    }
+  }
+  
+  /**
+   * Continues the task tree of a {@link TaskContext} on the current thread
+   * until closed.
+   */
+  public final class Scope implements AutoCloseable {
+    private final TaskStack previous;
+    
+    private Scope(TaskStack previous) {
+      this.previous = previous;
+    }
+    
+    @Override
+    public void close() {
+      stacks.set(previous);
+    }
+  }
+  
+  private final ThreadLocal<TaskStack> stacks = new ThreadLocal<TaskStack>() {
+    @Override
+    protected TaskStack initialValue() {
+      return new TaskStack(0, 0);
+    }
+  };
+  
+  /**
+   * Guards {@link #pendingInline} and the output that depends on it, so
+   * that no thread prints onto the unterminated line of another thread's
+   * inline task.
+   */
+  private final Object console = new Object();
+  
+  /**
+   * The stack whose inline task at {@link TaskStack#inlineIndex} has
+   * printed its begin message without a line break, if any.
+   */
+  private TaskStack pendingInline;
+  
+  private final AtomicInteger silent = new AtomicInteger(-1);
+  private volatile int loglevel = CORE;
   
   public static PrintStream out = System.out;
   public static PrintStream err = System.err;
   
-  public synchronized void beginTask(String shortText, String longText, boolean inline, int tasklevel) {
-    if (silent >= 0)
+  /**
+   * Writes log output on a separate thread, if not null.
+   */
+  private volatile AsyncPrinter async;
+  private boolean flushOnExit;
+  
+  /**
+   * Receives all task events, if not null.
+   */
+  private volatile TraceSink trace;
+  
+  private final TaskStatistics statistics = new TaskStatistics();
+  private volatile boolean collectStatistics = true;
+  
+  public void beginTask(String shortText, String longText, boolean inline, int tasklevel) {
+    if (silent.get() >= 0)
       return;
     
+    TaskStack stack = stacks.get();
     boolean active = (loglevel & tasklevel) > 0;
     
     if (!active ||  longText == null || shortText == null) {
-      tasks.push(null);
+      stack.push(shortText == null ? longText : shortText, tasklevel, System.nanoTime(), false, false);
     }
     else {
-      noLongerLeaf();
-  
-      indent();
-      out.print(longText);
-      if (!inline) 
-        out.println();
-  
-      tasks.push(shortText);
-      lightweight.push(inline);
+      String text = indentation(stack) + longText;
+      synchronized (console) {
+        noLongerLeaf();
+        if (inline) {
+          print(out, text);
+          stack.inlineIndex = stack.size;
+          pendingInline = stack;
+        }
+        else
+          println(out, text);
+      }
+      stack.push(shortText, tasklevel, System.nanoTime(), true, inline);
     }
     
-    timings.push(System.currentTimeMillis());
+    TraceSink trace = this.trace;
+    if (trace != null) {
+      int i = stack.size - 1;
+      trace.begin(stack.names[i], tasklevel, Thread.currentThread().getId(), stack.startTimes[i], stack.ids[i], i == 0 ? stack.baseParent : stack.ids[i - 1]);
+    }
   }
   
   public void beginTask(String shortText, String longText, int level) {
@@ -65,33 +267,96 @@ public class Log {
     beginTask(text, text, level);
   }
   
-  public synchronized long endTask(String error, boolean doneMessage) {
-    if (silent >= 0)
+  /**
+   * @return the duration of the task in milliseconds, or -1 if there is no
+   *         task to end.
+   */
+  public long endTask(String error, boolean doneMessage) {
+    long duration = endTaskNanos(error, doneMessage);
+    return duration < 0 ? -1 : duration / 1000000;
+  }
+  
+  /**
+   * @return the duration of the task in nanoseconds, or -1 if there is no
+   *         task to end.
+   */
+  public long endTaskNanos(String error, boolean doneMessage) {
+    if (silent.get() >= 0)
       return -1;
     
-    long endTime = System.currentTimeMillis();
+    long endTime = System.nanoTime();
     
-    if (tasks.isEmpty())
+    TaskStack stack = stacks.get();
+    if (stack.size == 0)
       return -1;
     
-    String shortText = tasks.pop();    
-    Long startTime = timings.pop();
-    long duration = endTime - startTime;
+    int i = --stack.size;
+    String shortText = stack.names[i];
+    stack.names[i] = null;
+    long duration = endTime - stack.startTimes[i];
+    
+    TraceSink trace = this.trace;
+    if (trace != null)
+      trace.end(shortText, stack.levels[i], Thread.currentThread().getId(), endTime, stack.ids[i], error);
+    
+    if (collectStatistics)
+      statistics.record(shortText, duration);
 
-    if (shortText == null)
+    if (!stack.displayed[i])
       return duration;
     
-    if (lightweight.pop()) {
-      out.println(" ... " + error + " - " + duration + "ms");
-    } else if (doneMessage) {
-      log.log(shortText + " ... " + error + " - " + duration + "ms", Log.ALWAYS);
+    if (stack.inline[i] && stack.inlineIndex == i) {
+      synchronized (console) {
+        if (pendingInline == stack) {
+          pendingInline = null;
+          println(out, " ... " + error + " - " + formatDuration(duration));
+          return duration;
+        }
+      }
+    }
+    
+    if (doneMessage) {
+      log.log(shortText + " ... " + error + " - " + formatDuration(duration), Log.ALWAYS);
     }
     else 
-      log.log(shortText + " ... " + error + " - " + duration + "ms", Log.ALWAYS);
+      log.log(shortText + " ... " + error + " - " + formatDuration(duration), Log.ALWAYS);
     
     return duration;
   }
   
+  /**
+   * Begins a task that ends when the returned timer is closed:
+   * 
+   * <pre>
+   * try (TaskTimer t = Log.log.timeTask("parse", Log.PARSE)) {
+   *   ...
+   * }
+   * </pre>
+   * 
+   * The timer only ends the task it was obtained for; see
+   * {@link TaskHandle}.
+   */
+  public TaskTimer timeTask(String text, int level) {
+    TaskStack stack = stacks.get();
+    int size = stack.size;
+    beginTask(text, level);
+    if (stack.size == size)
+      return NO_TASK; // silent, nothing to end
+    return new TaskHandle(stack, stack.size);
+  }
+  
+  /**
+   * Durations of at least a millisecond are shown in whole milliseconds,
+   * shorter ones with microsecond precision.
+   */
+  private static String formatDuration(long nanos) {
+    if (nanos >= 1000000)
+      return nanos / 1000000 + "ms";
+    
+    long micros = nanos / 1000;
+    return (micros < 10 ? "0.00" : micros < 100 ? "0.0" : "0.") + micros + "ms";
+  }
+  
   public long endTask() {
     return endTask("done", BORING_DONE_MESSAGES);
   }
@@ -111,54 +376,176 @@ public class Log {
       return endTask(bad);
   }
   
+  /**
+   * @return true if a message of the given level would be printed. Use to
+   *         guard expensive message construction.
+   */
+  public boolean isEnabled(int msglevel) {
+    return (loglevel & msglevel) != 0 && silent.get() < 0;
+  }
+  
   public void log(Object o, int msglevel) {
+    if (!isEnabled(msglevel))
+      return;
     log(o.toString(), msglevel);
   }
   
-  public synchronized void log(String text, int msglevel) {
-    if (silent >= 0)
+  /**
+   * Only computes the message if it will be printed.
+   */
+  public void log(Supplier<String> message, int msglevel) {
+    if (!isEnabled(msglevel))
       return;
-    
-    if ((loglevel & msglevel) == 0)
+    log(message.get(), msglevel);
+  }
+  
+  /**
+   * Only formats the message if it will be printed.
+   * 
+   * @see String#format(String, Object...)
+   */
+  public void log(String format, Object arg, int msglevel) {
+    if (!isEnabled(msglevel))
       return;
-    
-    noLongerLeaf();
-    indent();
-    out.println(text);
+    log(String.format(format, arg), msglevel);
   }
   
-  public synchronized void logErr(String text, int msglevel) {
-    if (silent >= 0)
+  /**
+   * Only formats the message if it will be printed.
+   * 
+   * @see String#format(String, Object...)
+   */
+  public void log(String format, Object arg1, Object arg2, int msglevel) {
+    if (!isEnabled(msglevel))
       return;
-    
-    if ((loglevel & msglevel) == 0)
+    log(String.format(format, arg1, arg2), msglevel);
+  }
+  
+  /**
+   * Only formats the message if it will be printed. Note that the argument
+   * array is allocated by the caller; prefer the fixed-arity variants in
+   * hot code.
+   * 
+   * @see String#format(String, Object...)
+   */
+  public void logFormat(int msglevel, String format, Object... args) {
+    if (!isEnabled(msglevel))
+      return;
+    log(String.format(format, args), msglevel);
+  }
+  
+  public void log(String text, int msglevel) {
+    if (!isEnabled(msglevel))
       return;
     
-    noLongerLeaf();
-    indent();
-    err.println(text);
+    String line = indentation(stacks.get()) + text;
+    synchronized (console) {
+      noLongerLeaf();
+      println(out, line);
+    }
   }
   
-  public synchronized void logErr(String text, Exception e, int msglevel) {
-    if (silent >= 0)
+  public void logErr(String text, int msglevel) {
+    if (!isEnabled(msglevel))
       return;
     
-    if ((loglevel & msglevel) == 0)
+    String line = indentation(stacks.get()) + text;
+    synchronized (console) {
+      noLongerLeaf();
+      println(err, line);
+    }
+  }
+  
+  /**
+   * Only computes the message if it will be printed.
+   */
+  public void logErr(Supplier<String> message, int msglevel) {
+    if (!isEnabled(msglevel))
+      return;
+    logErr(message.get(), msglevel);
+  }
+  
+  public void logErr(String text, Exception e, int msglevel) {
+    if (!isEnabled(msglevel))
       return;
     
-    noLongerLeaf();
-    indent();
-    err.println(text);
-    e.printStackTrace(err);
+    String line = indentation(stacks.get()) + text;
+    synchronized (console) {
+      noLongerLeaf();
+      println(err, line);
+      printStackTrace(err, e);
+    }
   }
   
+  /**
+   * Terminates the line of a pending inline task. Call while holding
+   * {@link #console}.
+   */
   private void noLongerLeaf() {
-    if (!lightweight.isEmpty() && lightweight.peek()) {
-      lightweight.pop();
-      lightweight.push(false);
-      out.println();
+    if (pendingInline != null) {
+      pendingInline = null;
+      println(out, "");
     }
   }
+  
+  /**
+   * @return the current thread's position in the task tree, to be continued
+   *         on another thread with {@link #enter(TaskContext)}.
+   */
+  public TaskContext capture() {
+    TaskStack stack = stacks.get();
+    return new TaskContext(stack.depth(), stack.top());
+  }
+  
+  /**
+   * Nests all tasks the current thread begins under the captured task,
+   * until the returned scope is closed. Use with try-with-resources; scopes
+   * may be nested, e.g., when a fork-join worker executes a stolen task
+   * while joining.
+   */
+  public Scope enter(TaskContext context) {
+    TaskStack previous = stacks.get();
+    stacks.set(new TaskStack(context.depth, context.parent));
+    return new Scope(previous);
+  }
+  
+  /**
+   * @return a runnable that runs <code>r</code> nested under the current
+   *         thread's task, no matter which thread it runs on.
+   */
+  public Runnable wrap(final Runnable r) {
+    final TaskContext context = capture();
+    return new Runnable() {
+      @Override
+      public void run() {
+        Scope scope = enter(context);
+        try {
+          r.run();
+        } finally {
+          scope.close();
+        }
+      }
+    };
+  }
+  
+  /**
+   * @return a callable that calls <code>c</code> nested under the current
+   *         thread's task, no matter which thread it runs on.
+   */
+  public <V> Callable<V> wrap(final Callable<V> c) {
+    final TaskContext context = capture();
+    return new Callable<V>() {
+      @Override
+      public V call() throws Exception {
+        Scope scope = enter(context);
+        try {
+          return c.call();
+        } finally {
+          scope.close();
+        }
+      }
+    };
+  }
 
   public void beginExecution(String prefix, int level, String... cmds) {
     if (Exec.FULL_COMMAND_LINE) {
@@ -200,6 +587,9 @@ public class Log {
   }
   
   public void logCommandLine(String[] cmds, int level) {
+    if (!isEnabled(level))
+      return;
+    
     for (int i = 0; i < cmds.length; i++) {
       if (cmds[i].startsWith("-") && i + 1 < cmds.length && !cmds[i+1].startsWith("-")) {
         log(cmds[i] + " " + cmds[i + 1], level);
@@ -214,9 +604,97 @@ public class Log {
     beginTask(text, text, true, level);
   }
 
-  private void indent() {
-    for (int i = tasks.size(); i > 0; i--)
-      out.print("  ");
+  private String indentation(TaskStack stack) {
+    int depth = stack.depth();
+    if (depth == 0)
+      return "";
+    
+    StringBuilder builder = new StringBuilder(2 * depth);
+    for (int i = depth; i > 0; i--)
+      builder.append("  ");
+    return builder.toString();
+  }
+  
+  private void print(PrintStream stream, String text) {
+    AsyncPrinter async = this.async;
+    if (async == null)
+      stream.print(text);
+    else
+      async.print(stream, text);
+  }
+  
+  private void println(PrintStream stream, String text) {
+    AsyncPrinter async = this.async;
+    if (async == null)
+      stream.println(text);
+    else
+      async.print(stream, text + System.lineSeparator());
+  }
+  
+  private void printStackTrace(PrintStream stream, Exception e) {
+    AsyncPrinter async = this.async;
+    if (async == null)
+      e.printStackTrace(stream);
+    else {
+      StringWriter trace = new StringWriter();
+      e.printStackTrace(new PrintWriter(trace));
+      async.print(stream, trace.toString());
+    }
+  }
+  
+  /**
+   * Hands all further output to a dedicated writer thread, so that logging
+   * threads neither wait for console I/O nor for each other while printing.
+   * Output is flushed when the JVM exits; call {@link #flush()} to wait for
+   * pending output earlier.
+   * 
+   * @param capacity
+   *          the number of pending messages before <code>policy</code>
+   *          applies.
+   */
+  public synchronized void enableAsyncOutput(int capacity, OverflowPolicy policy) {
+    if (async != null)
+      async.shutdown();
+    async = new AsyncPrinter(capacity, policy);
+    
+    if (!flushOnExit) {
+      flushOnExit = true;
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }));
+    }
+  }
+  
+  /**
+   * Writes all pending output and prints synchronously from now on.
+   */
+  public synchronized void disableAsyncOutput() {
+    if (async == null)
+      return;
+    
+    AsyncPrinter old = async;
+    async = null;
+    old.shutdown();
+  }
+  
+  public boolean isAsyncOutput() {
+    return async != null;
+  }
+  
+  /**
+   * Blocks until all output logged so far has been written.
+   */
+  public void flush() {
+    AsyncPrinter async = this.async;
+    if (async != null)
+      async.flush();
+    else {
+      out.flush();
+      err.flush();
+    }
   }
 
   public void endExecution(int exitValue) {
@@ -231,11 +709,42 @@ public class Log {
   }
   
   public void beginSilent() {
-    silent++;
+    silent.incrementAndGet();
   }
   
   public void endSilent() {
-    silent--;
+    silent.decrementAndGet();
+  }
+  
+  /**
+   * Records the begin and end of all tasks in <code>sink</code>,
+   * independent of the logging level. Tasks that are open when the sink is
+   * replaced will not be ended in the new sink.
+   * 
+   * @param sink
+   *          the new trace sink, or null to disable tracing.
+   * @return the previous sink, which the caller should close.
+   */
+  public TraceSink setTraceSink(TraceSink sink) {
+    TraceSink old = this.trace;
+    this.trace = sink;
+    return old;
+  }
+  
+  public TraceSink getTraceSink() {
+    return trace;
+  }
+  
+  /**
+   * @return the aggregated durations of all tasks ended so far, grouped by
+   *         task name and independent of the logging level.
+   */
+  public TaskStatistics getTaskStatistics() {
+    return statistics;
+  }
+  
+  public void setCollectTaskStatistics(boolean collect) {
+    this.collectStatistics = collect;
   }
   
   public void setLoggingLevel(int level) {
@@ -0,0 +1,249 @@
+package org.sugarj.common;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers for I/O operations of this library, e.g., bytes read
+ * by {@link FileCommands} or processes spawned by {@link Exec}.
+ *
+ * Instrumentation is off by default. When off, an instrumented operation
+ * only pays for reading {@link #ENABLED}. When on, updates go to
+ * {@link LongAdder}s, which do not contend between threads.
+ */
+public class Metrics {
+
+  /**
+   * Whether instrumented operations update their counters and timers.
+   */
+  public static volatile boolean ENABLED = false;
+
+  public static final String OBJECT_NAME = "org.sugarj.common:type=Metrics";
+
+  public static final class Counter {
+    public final String name;
+    private final LongAdder value = new LongAdder();
+
+    private Counter(String name) {
+      this.name = name;
+    }
+
+    public void increment() {
+      if (ENABLED)
+        value.increment();
+    }
+
+    public void add(long n) {
+      if (ENABLED)
+        value.add(n);
+    }
+
+    public long get() {
+      return value.sum();
+    }
+
+    public void reset() {
+      value.reset();
+    }
+  }
+
+  /**
+   * Counts timed operations and sums up their durations in nanoseconds.
+   *
+   * <pre>
+   * long start = TIMER.start();
+   * ...
+   * TIMER.stop(start);
+   * </pre>
+   */
+  public static final class Timer {
+    public final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private Timer(String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return the start time, or 0 if instrumentation is off.
+     */
+    public long start() {
+      return ENABLED ? System.nanoTime() : 0;
+    }
+
+    public void stop(long start) {
+      if (start != 0)
+        record(System.nanoTime() - start);
+    }
+
+    public void record(long duration) {
+      if (ENABLED) {
+        count.increment();
+        nanos.add(duration);
+      }
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getNanos() {
+      return nanos.sum();
+    }
+
+    public void reset() {
+      count.reset();
+      nanos.reset();
+    }
+  }
+
+  private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+  private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+  private static final Function<String, Counter> NEW_COUNTER = new Function<String, Counter>() {
+    @Override
+    public Counter apply(String name) {
+      return new Counter(name);
+    }
+  };
+
+  private static final Function<String, Timer> NEW_TIMER = new Function<String, Timer>() {
+    @Override
+    public Timer apply(String name) {
+      return new Timer(name);
+    }
+  };
+
+  public static Counter counter(String name) {
+    return counters.computeIfAbsent(name, NEW_COUNTER);
+  }
+
+  public static Timer timer(String name) {
+    return timers.computeIfAbsent(name, NEW_TIMER);
+  }
+
+  public static void reset() {
+    for (Counter c : counters.values())
+      c.reset();
+    for (Timer t : timers.values())
+      t.reset();
+  }
+
+  public static void dump(PrintStream out) {
+    List<String> names = new ArrayList<>(counters.keySet());
+    Collections.sort(names);
+    for (String name : names)
+      out.println(String.format("%-40s %15d", name, counters.get(name).get()));
+
+    names = new ArrayList<>(timers.keySet());
+    Collections.sort(names);
+    for (String name : names) {
+      Timer t = timers.get(name);
+      out.println(String.format("%-40s %15d %12dms", name, t.getCount(), t.getNanos() / 1000000));
+    }
+  }
+
+  /**
+   * Makes all counters and timers available as attributes of the MBean
+   * {@value #OBJECT_NAME} of the platform MBean server. A timer
+   * <code>t</code> yields the attributes <code>t.count</code> and
+   * <code>t.nanos</code>.
+   */
+  public static synchronized void registerMBean() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(OBJECT_NAME);
+    if (!server.isRegistered(name))
+      server.registerMBean(new MetricsMBean(), name);
+  }
+
+  private static class MetricsMBean implements DynamicMBean {
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      if (attribute.equals("Enabled"))
+        return ENABLED;
+      Counter c = counters.get(attribute);
+      if (c != null)
+        return c.get();
+      if (attribute.endsWith(".count") || attribute.endsWith(".nanos")) {
+        Timer t = timers.get(attribute.substring(0, attribute.length() - ".count".length()));
+        if (t != null)
+          return attribute.endsWith(".count") ? t.getCount() : t.getNanos();
+      }
+      throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      if (!attribute.getName().equals("Enabled"))
+        throw new AttributeNotFoundException(attribute.getName());
+      ENABLED = (Boolean) attribute.getValue();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList list = new AttributeList();
+      for (String a : attributes)
+        try {
+          list.add(new Attribute(a, getAttribute(a)));
+        } catch (AttributeNotFoundException e) {
+          // skip unknown attributes as required by DynamicMBean
+        }
+      return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      AttributeList set = new AttributeList();
+      for (Attribute a : attributes.asList())
+        try {
+          setAttribute(a);
+          set.add(a);
+        } catch (AttributeNotFoundException e) {
+          // skip unknown attributes as required by DynamicMBean
+        }
+      return set;
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      if (actionName.equals("reset")) {
+        reset();
+        return null;
+      }
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<>();
+      attributes.add(new MBeanAttributeInfo("Enabled", "boolean", "Whether instrumentation is on", true, true, true));
+      for (String name : counters.keySet())
+        attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+      for (String name : timers.keySet()) {
+        attributes.add(new MBeanAttributeInfo(name + ".count", "long", "number of timed operations", true, false, false));
+        attributes.add(new MBeanAttributeInfo(name + ".nanos", "long", "total duration in nanoseconds", true, false, false));
+      }
+      MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Resets all counters and timers", null, "void", MBeanOperationInfo.ACTION);
+      return new MBeanInfo(Metrics.class.getName(), "I/O instrumentation of org.sugarj.common", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[] { reset }, null);
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package org.sugarj.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.sugarj.common.path.Path;
+
+/**
+ * Read/write locks on file paths.
+ *
+ * Within the JVM, paths are mapped to a fixed number of lock stripes, so
+ * unrelated paths rarely contend and no global lock is involved. With
+ * {@link #CROSS_PROCESS} enabled, a lock additionally holds a
+ * {@link FileLock} on a sidecar file <code>name.lock</code> next to the
+ * locked path, shared for readers and exclusive for writers. Sidecar files
+ * are not deleted, since deleting them would race with other processes.
+ *
+ * Locks are reentrant, but a read lock cannot be upgraded to a write lock.
+ * Since distinct paths may share a stripe, do not acquire a lock while
+ * holding a lock on another path.
+ */
+public class PathLocks {
+
+  /**
+   * also lock against other processes
+   */
+  public static boolean CROSS_PROCESS = false;
+
+  private static final int STRIPES = 64;
+
+  private static final Metrics.Timer WAIT = Metrics.timer("PathLocks.wait");
+
+  private static final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[STRIPES];
+  /**
+   * The file locks held by this JVM, per stripe; guarded by the map.
+   */
+  private static final List<Map<java.nio.file.Path, ChannelLock>> channels = new ArrayList<>(STRIPES);
+  static {
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new ReentrantReadWriteLock();
+      channels.add(new HashMap<java.nio.file.Path, ChannelLock>());
+    }
+  }
+
+  /**
+   * A file lock shared by all holders of a path's lock in this JVM;
+   * {@link FileChannel#lock} fails when the same JVM locks a file twice.
+   * While <code>pending</code>, the first holder is still waiting for the
+   * file lock and other holders wait for it.
+   */
+  private static class ChannelLock {
+    FileChannel channel;
+    FileLock lock;
+    boolean pending = true;
+    int holders;
+  }
+
+  /**
+   * A held lock, released by {@link #close()}.
+   */
+  public static final class Handle implements AutoCloseable {
+    private final java.nio.file.Path key;
+    private final Lock lock;
+    private final boolean crossProcess;
+    private boolean closed;
+
+    private Handle(java.nio.file.Path key, Lock lock, boolean crossProcess) {
+      this.key = key;
+      this.lock = lock;
+      this.crossProcess = crossProcess;
+    }
+
+    @Override
+    public void close() {
+      if (closed)
+        return;
+      closed = true;
+      try {
+        if (crossProcess)
+          releaseChannel(key);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  public static Handle read(Path file) throws IOException {
+    return read(file.toPath());
+  }
+
+  public static Handle read(java.nio.file.Path file) throws IOException {
+    return acquire(file, false);
+  }
+
+  public static Handle write(Path file) throws IOException {
+    return write(file.toPath());
+  }
+
+  public static Handle write(java.nio.file.Path file) throws IOException {
+    return acquire(file, true);
+  }
+
+  private static int stripe(java.nio.file.Path key) {
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    return h & (STRIPES - 1);
+  }
+
+  private static Handle acquire(java.nio.file.Path file, boolean exclusive) throws IOException {
+    java.nio.file.Path key = file.toAbsolutePath().normalize();
+    ReentrantReadWriteLock rw = locks[stripe(key)];
+    Lock lock = exclusive ? rw.writeLock() : rw.readLock();
+
+    if (!lock.tryLock()) {
+      long start = WAIT.start();
+      lock.lock();
+      WAIT.stop(start);
+    }
+
+    boolean crossProcess = CROSS_PROCESS;
+    if (crossProcess) {
+      try {
+        acquireChannel(key, exclusive);
+      } catch (IOException | RuntimeException e) {
+        lock.unlock();
+        throw e;
+      }
+    }
+    return new Handle(key, lock, crossProcess);
+  }
+
+  private static void acquireChannel(java.nio.file.Path key, boolean exclusive) throws IOException {
+    Map<java.nio.file.Path, ChannelLock> map = channels.get(stripe(key));
+    ChannelLock cl;
+    synchronized (map) {
+      while (true) {
+        cl = map.get(key);
+        if (cl == null)
+          break;
+        if (!cl.pending) {
+          // a writer excludes all other holders in this JVM, so the file
+          // lock is only shared among readers or reentrant acquisitions
+          cl.holders++;
+          return;
+        }
+        try {
+          map.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for the lock on " + key);
+        }
+      }
+      cl = new ChannelLock();
+      cl.holders = 1;
+      map.put(key, cl);
+    }
+
+    // wait for other processes without blocking other paths of the stripe
+    FileChannel channel = null;
+    FileLock lock;
+    try {
+      java.nio.file.Path lockFile = key.resolveSibling(key.getFileName() + ".lock");
+      FileCommands.createFile(lockFile);
+      channel = FileChannel.open(lockFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      lock = channel.lock(0, Long.MAX_VALUE, !exclusive);
+    } catch (IOException | RuntimeException e) {
+      if (channel != null)
+        try {
+          channel.close();
+        } catch (IOException ex) {
+          e.addSuppressed(ex);
+        }
+      synchronized (map) {
+        map.remove(key);
+        map.notifyAll();
+      }
+      throw e;
+    }
+
+    synchronized (map) {
+      cl.channel = channel;
+      cl.lock = lock;
+      cl.pending = false;
+      map.notifyAll();
+    }
+  }
+
+  private static void releaseChannel(java.nio.file.Path key) {
+    Map<java.nio.file.Path, ChannelLock> map = channels.get(stripe(key));
+    synchronized (map) {
+      ChannelLock cl = map.get(key);
+      if (cl == null || --cl.holders > 0)
+        return;
+      map.remove(key);
+      try {
+        cl.lock.release();
+        cl.channel.close();
+      } catch (IOException e) {
+        Log.log.logErr("Could not release lock on " + key + ": " + e.getMessage(), Log.DETAIL);
+      }
+    }
+  }
+}
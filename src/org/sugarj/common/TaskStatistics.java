@@ -0,0 +1,113 @@
+package org.sugarj.common;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.sugarj.common.util.Histogram;
+
+/**
+ * Aggregates the durations of tasks logged through {@link Log}, grouped by
+ * the short text of the task.
+ *
+ * Recording is lock-free and striped, so that it can stay enabled for
+ * parallel builds. Use {@link #dump(PrintStream)} at the end of a build to
+ * see which kinds of tasks dominate.
+ */
+public class TaskStatistics {
+
+  /**
+   * Tasks with names beyond this many distinct names are aggregated under
+   * {@link #OTHER}, which bounds the memory used for generated task names.
+   */
+  public static final int MAX_NAMES = 1024;
+  public static final String OTHER = "<other>";
+
+  public static class Entry {
+    public final String name;
+    /**
+     * Duration per task in nanoseconds.
+     */
+    public final Histogram durations = new Histogram();
+
+    private Entry(String name) {
+      this.name = name;
+    }
+
+    public long getCount() {
+      return durations.getCount();
+    }
+
+    public long getTotal() {
+      return durations.getTotal();
+    }
+  }
+
+  private static final Function<String, Entry> NEW_ENTRY = new Function<String, Entry>() {
+    @Override
+    public Entry apply(String name) {
+      return new Entry(name);
+    }
+  };
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  public void record(String name, long nanos) {
+    if (name == null)
+      name = "";
+
+    Entry entry = entries.get(name);
+    if (entry == null)
+      entry = entries.computeIfAbsent(entries.size() >= MAX_NAMES ? OTHER : name, NEW_ENTRY);
+    entry.durations.record(nanos);
+  }
+
+  public Entry getEntry(String name) {
+    return entries.get(name);
+  }
+
+  /**
+   * @return all entries, sorted by descending total duration.
+   */
+  public List<Entry> getEntries() {
+    List<Entry> list = new ArrayList<>(entries.values());
+    Collections.sort(list, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        return Long.compare(e2.getTotal(), e1.getTotal());
+      }
+    });
+    return list;
+  }
+
+  public void reset() {
+    entries.clear();
+  }
+
+  /**
+   * Prints one line per task name. Times are in milliseconds.
+   */
+  public void dump(PrintStream out) {
+    out.println(String.format("%-40s %8s %10s %10s %10s %10s %10s %10s", "task", "count", "total", "min", "mean", "p50", "p99", "max"));
+    for (Entry e : getEntries()) {
+      Histogram d = e.durations;
+      out.println(String.format("%-40s %8d %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f",
+          e.name,
+          d.getCount(),
+          millis(d.getTotal()),
+          millis(d.getMin()),
+          d.getMean() / 1000000,
+          millis(d.getPercentile(50)),
+          millis(d.getPercentile(99)),
+          millis(d.getMax())));
+    }
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1000000.0;
+  }
+}
@@ -0,0 +1,443 @@
+package org.sugarj.common;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sugarj.common.path.AbsolutePath;
+import org.sugarj.common.path.Path;
+
+/**
+ * Creates temporary files and directories below a root directory, e.g., a
+ * tmpfs mount, and cleans them up.
+ *
+ * A {@link Scope} is a temporary directory that is deleted when closed.
+ * Deletion happens on a background thread after the directory has been
+ * renamed out of the way. Scratch scopes are cleared instead of deleted and
+ * handed to the next task that asks for scratch space. No I/O happens until
+ * the first temporary file or directory is requested.
+ */
+public class TempSpace {
+
+  private static final Metrics.Counter DELETED_BYTES = Metrics.counter("TempSpace.deletedBytes");
+  private static final Metrics.Timer CLEANUP = Metrics.timer("TempSpace.cleanup");
+
+  /**
+   * The maximum number of cleared scratch directories kept for reuse.
+   */
+  public static final int MAX_SCRATCH = 8;
+
+  private static final String TRASH_PREFIX = ".trash-";
+
+  private static TempSpace defaultSpace;
+
+  /**
+   * @return the space used by {@link FileCommands}; by default rooted in
+   *         <code>java.io.tmpdir</code>.
+   */
+  public static synchronized TempSpace getDefault() {
+    if (defaultSpace == null)
+      defaultSpace = new TempSpace(Paths.get(System.getProperty("java.io.tmpdir")));
+    return defaultSpace;
+  }
+
+  public static synchronized void setDefault(TempSpace space) {
+    defaultSpace = space;
+  }
+
+  private final java.nio.file.Path root;
+  private volatile boolean rootCreated;
+
+  /*
+   * Guarded by this.
+   */
+  private final Deque<java.nio.file.Path> scratch = new ArrayDeque<>();
+  private final Set<Scope> open = new HashSet<>();
+  private ExecutorService cleaner;
+
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong deletedBytes = new AtomicLong();
+
+  /**
+   * @param root
+   *          is created on first use.
+   */
+  public TempSpace(java.nio.file.Path root) {
+    this.root = root.toAbsolutePath().normalize();
+  }
+
+  public java.nio.file.Path getRoot() {
+    return root;
+  }
+
+  private java.nio.file.Path root() throws IOException {
+    if (!rootCreated) {
+      synchronized (this) {
+        if (!rootCreated) {
+          Files.createDirectories(root);
+          sweepTrash();
+          rootCreated = true;
+        }
+      }
+    }
+    return root;
+  }
+
+  /**
+   * Deletes in the background what a discarded scope left behind when an
+   * earlier JVM died before its cleanup finished.
+   */
+  private void sweepTrash() throws IOException {
+    try (DirectoryStream<java.nio.file.Path> entries = Files.newDirectoryStream(root, TRASH_PREFIX + "*")) {
+      for (final java.nio.file.Path trash : entries)
+        submit(new Runnable() {
+          @Override
+          public void run() {
+            delete(trash, false);
+          }
+        });
+    }
+  }
+
+  /**
+   * @param suffix
+   *          including the dot, or null for ".tmp".
+   */
+  public java.nio.file.Path createTempFile(String prefix, String suffix) throws IOException {
+    return Files.createTempFile(root(), prefix, suffix);
+  }
+
+  public java.nio.file.Path createTempDir(String prefix) throws IOException {
+    return Files.createTempDirectory(root(), prefix);
+  }
+
+  /**
+   * A temporary directory that is deleted asynchronously when closed.
+   */
+  public final class Scope implements AutoCloseable {
+    private final java.nio.file.Path dir;
+    private final boolean reusable;
+    private boolean closed;
+
+    private Scope(java.nio.file.Path dir, boolean reusable) {
+      this.dir = dir;
+      this.reusable = reusable;
+    }
+
+    public java.nio.file.Path getDir() {
+      return dir;
+    }
+
+    public Path getPath() {
+      return new AbsolutePath(dir.toString());
+    }
+
+    /**
+     * @param suffix
+     *          including the dot, or null for ".tmp".
+     */
+    public java.nio.file.Path newFile(String suffix) throws IOException {
+      return Files.createTempFile(dir, "tmp", suffix);
+    }
+
+    public java.nio.file.Path newDir() throws IOException {
+      return Files.createTempDirectory(dir, "tmp");
+    }
+
+    /**
+     * @return the number of bytes in files below this directory.
+     */
+    public long size() throws IOException {
+      return TempSpace.size(dir);
+    }
+
+    @Override
+    public void close() {
+      synchronized (TempSpace.this) {
+        if (closed)
+          return;
+        closed = true;
+        open.remove(this);
+      }
+      if (reusable)
+        recycle(dir);
+      else
+        discard(dir);
+    }
+  }
+
+  /**
+   * @return a new, empty directory that is deleted when the scope is
+   *         closed.
+   */
+  public Scope scope(String prefix) throws IOException {
+    Scope scope = new Scope(createTempDir(prefix), false);
+    synchronized (this) {
+      open.add(scope);
+    }
+    return scope;
+  }
+
+  /**
+   * @return an empty directory, possibly one that an earlier scratch scope
+   *         used. Closing the scope clears the directory and keeps it for
+   *         reuse.
+   */
+  public Scope scratch() throws IOException {
+    java.nio.file.Path dir;
+    synchronized (this) {
+      dir = scratch.poll();
+    }
+    if (dir == null || !Files.isDirectory(dir))
+      dir = createTempDir("scratch");
+    Scope scope = new Scope(dir, true);
+    synchronized (this) {
+      open.add(scope);
+    }
+    return scope;
+  }
+
+  private void recycle(final java.nio.file.Path dir) {
+    submit(new Runnable() {
+      @Override
+      public void run() {
+        boolean keep = delete(dir, true);
+        synchronized (TempSpace.this) {
+          if (keep && scratch.size() < MAX_SCRATCH) {
+            scratch.add(dir);
+            return;
+          }
+        }
+        delete(dir, false);
+      }
+    });
+  }
+
+  private void discard(java.nio.file.Path dir) {
+    // free the name right away, also if deletion fails half-way
+    java.nio.file.Path trash = dir.resolveSibling(TRASH_PREFIX + dir.getFileName());
+    try {
+      Files.move(dir, trash, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | UnsupportedOperationException e) {
+      trash = dir;
+    }
+    final java.nio.file.Path target = trash;
+    submit(new Runnable() {
+      @Override
+      public void run() {
+        delete(target, false);
+      }
+    });
+  }
+
+  private void submit(final Runnable task) {
+    pending.incrementAndGet();
+    cleaner().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          pending.decrementAndGet();
+        }
+      }
+    });
+  }
+
+  private synchronized ExecutorService cleaner() {
+    if (cleaner == null)
+      cleaner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "TempSpace cleaner " + root);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    return cleaner;
+  }
+
+  /**
+   * Deletes <code>dir</code> or only its contents.
+   *
+   * @return whether everything was deleted.
+   */
+  private boolean delete(java.nio.file.Path dir, final boolean keepDir) {
+    long start = CLEANUP.start();
+    final long[] bytes = { 0 };
+    final boolean[] ok = { true };
+    final java.nio.file.Path top = dir;
+    try {
+      Files.walkFileTree(dir, new SimpleFileVisitor<java.nio.file.Path>() {
+        @Override
+        public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) {
+          try {
+            Files.delete(file);
+            bytes[0] += attrs.size();
+          } catch (NoSuchFileException e) {
+          } catch (IOException e) {
+            ok[0] = false;
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(java.nio.file.Path file, IOException exc) {
+          if (!(exc instanceof NoSuchFileException))
+            ok[0] = false;
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(java.nio.file.Path d, IOException exc) {
+          if (keepDir && d.equals(top))
+            return FileVisitResult.CONTINUE;
+          try {
+            Files.delete(d);
+          } catch (NoSuchFileException e) {
+          } catch (IOException e) {
+            ok[0] = false;
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      ok[0] = false;
+    }
+    if (!ok[0])
+      Log.log.logErr("Could not delete all of temporary directory " + dir, Log.DETAIL);
+    deletedBytes.addAndGet(bytes[0]);
+    DELETED_BYTES.add(bytes[0]);
+    CLEANUP.stop(start);
+    return ok[0];
+  }
+
+  /**
+   * Deletes the temporary file or directory that contains
+   * <code>file</code>, i.e., the entry directly below the root, right
+   * away. Does nothing for the root itself and files outside of it.
+   *
+   * @return whether <code>file</code> is the root or below it.
+   */
+  public boolean deleteEntry(java.nio.file.Path file) throws IOException {
+    return deleteEntry(root, file);
+  }
+
+  /**
+   * Deletes the entry directly below <code>root</code> that contains
+   * <code>file</code>.
+   *
+   * @return whether <code>file</code> is <code>root</code> or below it.
+   */
+  static boolean deleteEntry(java.nio.file.Path root, java.nio.file.Path file) throws IOException {
+    java.nio.file.Path r = root.toAbsolutePath().normalize();
+    java.nio.file.Path p = file.toAbsolutePath().normalize();
+    if (!p.startsWith(r))
+      return false;
+    if (!p.equals(r))
+      FileCommands.delete(r.resolve(r.relativize(p).getName(0)));
+    return true;
+  }
+
+  /**
+   * Waits until all pending deletions are done.
+   */
+  public void awaitCleanup() throws InterruptedException {
+    ExecutorService c;
+    synchronized (this) {
+      c = cleaner;
+    }
+    if (c == null)
+      return;
+    try {
+      c.submit(new Runnable() {
+        @Override
+        public void run() {
+        }
+      }).get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Waits for pending deletions, deletes the kept scratch directories and
+   * stops the cleanup thread. Scopes still open stay untouched.
+   */
+  public void shutdown() throws InterruptedException {
+    awaitCleanup();
+    ExecutorService c;
+    java.nio.file.Path[] dirs;
+    synchronized (this) {
+      c = cleaner;
+      cleaner = null;
+      dirs = scratch.toArray(new java.nio.file.Path[scratch.size()]);
+      scratch.clear();
+    }
+    for (java.nio.file.Path dir : dirs)
+      delete(dir, false);
+    if (c != null)
+      c.shutdown();
+  }
+
+  /**
+   * @return the number of deletions not finished yet.
+   */
+  public int getPendingCleanups() {
+    return pending.get();
+  }
+
+  /**
+   * @return the number of bytes in files deleted so far.
+   */
+  public long getDeletedBytes() {
+    return deletedBytes.get();
+  }
+
+  /**
+   * @return the number of bytes in files below all open scopes.
+   */
+  public long usage() throws IOException {
+    Scope[] scopes;
+    synchronized (this) {
+      scopes = open.toArray(new Scope[open.size()]);
+    }
+    long total = 0;
+    for (Scope s : scopes)
+      total += size(s.dir);
+    return total;
+  }
+
+  private static long size(java.nio.file.Path dir) throws IOException {
+    final long[] bytes = { 0 };
+    Files.walkFileTree(dir, new SimpleFileVisitor<java.nio.file.Path>() {
+      @Override
+      public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) {
+        bytes[0] += attrs.size();
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(java.nio.file.Path file, IOException exc) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return bytes[0];
+  }
+}
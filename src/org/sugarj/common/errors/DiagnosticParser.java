@@ -0,0 +1,421 @@
+package org.sugarj.common.errors;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sugarj.common.Exec;
+import org.sugarj.common.Exec.ExecutionError;
+import org.sugarj.common.Exec.ExecutionResult;
+import org.sugarj.common.path.AbsolutePath;
+import org.sugarj.common.path.Path;
+import org.sugarj.common.util.Pair;
+
+/**
+ * Parses compiler diagnostics line by line, so that it can consume the
+ * output of a running tool through {@link Exec.LineListener}. Recognizes
+ * <ul>
+ * <li>javac: <code>File.java:12: error: msg</code>, followed by the source
+ * line, a caret line and indented details such as <code>symbol:</code>,</li>
+ * <li>gcc-style: <code>file:12:5: error: msg</code> or
+ * <code>file:12:5: msg</code>,</li>
+ * <li>ecj: <code>1. ERROR in File.java (at line 12)</code>, followed by the
+ * source line, a caret line and the message up to a
+ * <code>----------</code> separator.</li>
+ * </ul>
+ * Only the current diagnostic is buffered. Columns are 1-based, or 0 if the
+ * tool reported none.
+ */
+public class DiagnosticParser implements Exec.LineListener {
+
+  /**
+   * Notified of each diagnostic as soon as it is complete.
+   */
+  public static interface Listener {
+    void diagnostic(SourceLocation location, String msg, boolean error);
+  }
+
+  private static final int ERROR = 0;
+  private static final int WARNING = 1;
+  private static final int NOTE = 2;
+
+  /**
+   * The number of lines not belonging to any diagnostic that are kept for
+   * error reports.
+   */
+  public static final int MAX_UNUSED_LINES = 100;
+
+  private static final int EXPECT_SOURCE = 0;
+  private static final int EXPECT_CARET = 1;
+  private static final int DETAILS = 2;
+
+  private final File baseDir;
+  private boolean includeWarnings;
+  private Listener listener;
+
+  private final Map<String, Path> paths = new HashMap<>();
+  private DiagnosticTable errors = new DiagnosticTable();
+  private final ArrayDeque<String> unused = new ArrayDeque<>();
+
+  /*
+   * The diagnostic being parsed, if file != null.
+   */
+  private String file;
+  private int line;
+  private int columnStart;
+  private int columnEnd;
+  private int severity;
+  private boolean ecj;
+  private int phase;
+  private final StringBuilder msg = new StringBuilder();
+
+  /**
+   * @param baseDir
+   *          resolves relative file names, or null for the working
+   *          directory.
+   */
+  public DiagnosticParser(File baseDir) {
+    this.baseDir = baseDir;
+  }
+
+  /**
+   * Also collect warnings, not only errors.
+   */
+  public DiagnosticParser setIncludeWarnings(boolean includeWarnings) {
+    this.includeWarnings = includeWarnings;
+    return this;
+  }
+
+  public DiagnosticParser setListener(Listener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  @Override
+  public synchronized void line(String s) {
+    if (file != null && ecj) {
+      if (s.startsWith("----------")) {
+        flush();
+        return;
+      }
+      if (phase == EXPECT_SOURCE) {
+        phase = EXPECT_CARET;
+        return;
+      }
+      if (phase == EXPECT_CARET) {
+        phase = DETAILS;
+        if (caret(s))
+          return;
+      }
+      if (msg.length() > 0)
+        msg.append('\n');
+      msg.append(s.trim());
+      return;
+    }
+
+    if (parseEcjHeader(s) || parseHeader(s))
+      return;
+
+    if (isSummary(s)) {
+      flush();
+      return;
+    }
+
+    if (file == null) {
+      unused(s);
+      return;
+    }
+    if (caret(s)) {
+      phase = DETAILS;
+      return;
+    }
+    if (phase == EXPECT_SOURCE)
+      phase = EXPECT_CARET;
+    else if (phase == DETAILS && isDetail(s))
+      msg.append('\n').append(s.trim());
+    else if (phase == DETAILS)
+      unused(s);
+  }
+
+  private void unused(String s) {
+    if (unused.size() == MAX_UNUSED_LINES)
+      unused.poll();
+    unused.add(s);
+  }
+
+  /**
+   * @return the last {@link #MAX_UNUSED_LINES} lines that were not part of
+   *         a diagnostic, e.g., a crash message of the tool.
+   */
+  public synchronized String[] getUnusedLines() {
+    return unused.toArray(new String[unused.size()]);
+  }
+
+  /**
+   * Completes the last diagnostic. Call when the tool's output ends.
+   */
+  public synchronized void finish() {
+    flush();
+  }
+
+  /**
+   * @return the errors parsed so far.
+   */
+  public synchronized List<Pair<SourceLocation, String>> getErrors() {
+    return new ArrayList<>(errors.asList());
+  }
+
+  /**
+   * Completes the last diagnostic and throws the collected errors, if any.
+   * Errors parsed afterwards are collected anew.
+   */
+  public synchronized void check() throws SourceCodeException {
+    flush();
+    if (!errors.isEmpty()) {
+      DiagnosticTable result = errors;
+      errors = new DiagnosticTable();
+      throw new SourceCodeException(result);
+    }
+  }
+
+  public static List<Pair<SourceLocation, String>> parse(Reader in, File baseDir) throws IOException {
+    DiagnosticParser parser = new DiagnosticParser(baseDir);
+    BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+    String s;
+    while ((s = reader.readLine()) != null)
+      parser.line(s);
+    parser.finish();
+    return parser.errors.asList();
+  }
+
+  /**
+   * Runs a compiler, parsing diagnostics from its standard output and error
+   * while it runs.
+   *
+   * @throws SourceCodeException
+   *           if the compiler reported errors, even if it exited
+   *           successfully.
+   * @throws ExecutionError
+   *           if the compiler failed without reporting parseable errors.
+   *           Its messages are the last lines the parser could not use.
+   */
+  public static ExecutionResult run(File dir, String... cmds) throws SourceCodeException {
+    DiagnosticParser out = new DiagnosticParser(dir);
+    DiagnosticParser err = new DiagnosticParser(dir);
+    ExecutionResult result;
+    try {
+      result = new Exec(true).runWithPrefix(cmds[0], dir, out, err, cmds);
+    } catch (ExecutionError e) {
+      DiagnosticTable errors = merge(out, err);
+      if (errors.isEmpty())
+        throw new ExecutionError("Command failed without diagnostics", e.cmds, out.getUnusedLines(), err.getUnusedLines(), e);
+      throw new SourceCodeException(errors);
+    }
+    DiagnosticTable errors = merge(out, err);
+    if (!errors.isEmpty())
+      throw new SourceCodeException(errors);
+    return result;
+  }
+
+  /**
+   * Completes both parsers and collects their errors, standard output first.
+   */
+  private static DiagnosticTable merge(DiagnosticParser out, DiagnosticParser err) {
+    out.finish();
+    err.finish();
+    DiagnosticTable errors = out.errors;
+    errors.addAll(err.errors);
+    return errors;
+  }
+
+  private boolean parseEcjHeader(String s) {
+    int i = 0;
+    while (i < s.length() && Character.isDigit(s.charAt(i)))
+      i++;
+    if (i == 0 || !s.startsWith(". ", i))
+      return false;
+    i += 2;
+
+    int sev;
+    if (s.startsWith("ERROR in ", i)) {
+      sev = ERROR;
+      i += "ERROR in ".length();
+    }
+    else if (s.startsWith("WARNING in ", i)) {
+      sev = WARNING;
+      i += "WARNING in ".length();
+    }
+    else
+      return false;
+
+    int at = s.lastIndexOf(" (at line ");
+    if (at < i || !s.endsWith(")"))
+      return false;
+    int l = parseInt(s, at + " (at line ".length(), s.length() - 1);
+    if (l < 0)
+      return false;
+
+    start(s.substring(i, at), l, sev, true);
+    return true;
+  }
+
+  private boolean parseHeader(String s) {
+    if (s.isEmpty() || Character.isWhitespace(s.charAt(0)) || s.startsWith("In file included from "))
+      return false;
+
+    // skip a Windows drive letter
+    int from = s.length() > 2 && Character.isLetter(s.charAt(0)) && s.charAt(1) == ':' ? 2 : 0;
+    int c1 = s.indexOf(':', from);
+    if (c1 <= 0)
+      return false;
+    int c2 = digitsEnd(s, c1 + 1);
+    if (c2 == c1 + 1 || c2 >= s.length() || s.charAt(c2) != ':')
+      return false;
+    int l = parseInt(s, c1 + 1, c2);
+    int col = 0;
+    int rest = c2 + 1;
+    int c3 = digitsEnd(s, rest);
+    if (c3 > rest && c3 < s.length() && s.charAt(c3) == ':') {
+      col = parseInt(s, rest, c3);
+      rest = c3 + 1;
+    }
+    if (l < 0 || col < 0)
+      return false;
+
+    while (rest < s.length() && s.charAt(rest) == ' ')
+      rest++;
+    int sev = ERROR;
+    if (s.startsWith("error:", rest))
+      rest += "error:".length();
+    else if (s.startsWith("fatal error:", rest))
+      rest += "fatal error:".length();
+    else if (s.startsWith("warning:", rest)) {
+      sev = WARNING;
+      rest += "warning:".length();
+    }
+    else if (s.startsWith("note:", rest))
+      sev = NOTE;
+
+    start(s.substring(0, c1), l, sev, false);
+    columnStart = columnEnd = col;
+    msg.append(s.substring(rest).trim());
+    return true;
+  }
+
+  private void start(String file, int line, int severity, boolean ecj) {
+    flush();
+    this.file = file;
+    this.line = line;
+    this.severity = severity;
+    this.ecj = ecj;
+    this.phase = EXPECT_SOURCE;
+    this.columnStart = 0;
+    this.columnEnd = 0;
+  }
+
+  /**
+   * Sets the column from a caret line, unless known already.
+   *
+   * @return whether <code>s</code> is a caret line.
+   */
+  private boolean caret(String s) {
+    int first = 0;
+    while (first < s.length() && Character.isWhitespace(s.charAt(first)))
+      first++;
+    if (first == s.length() || s.charAt(first) != '^')
+      return false;
+    int last = first;
+    for (int i = first + 1; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '^' || c == '~')
+        last = i;
+      else if (!Character.isWhitespace(c))
+        return false;
+    }
+    if (columnStart == 0) {
+      // ecj indents the source line with a tab, javac does not
+      int offset = ecj && s.charAt(0) == '\t' ? 0 : 1;
+      columnStart = first + offset;
+      columnEnd = last + offset;
+    }
+    return true;
+  }
+
+  /**
+   * javac details like <code>  symbol:   class Foo</code>.
+   */
+  private static boolean isDetail(String s) {
+    int i = 0;
+    while (i < s.length() && s.charAt(i) == ' ')
+      i++;
+    return i > 0 && i < s.length() && Character.isLetter(s.charAt(i)) && s.indexOf(':', i) > 0;
+  }
+
+  /**
+   * javac's <code>3 errors</code> or <code>1 warning</code>.
+   */
+  private static boolean isSummary(String s) {
+    int i = digitsEnd(s, 0);
+    if (i == 0 || i >= s.length() || s.charAt(i) != ' ')
+      return false;
+    String rest = s.substring(i + 1);
+    return rest.equals("error") || rest.equals("errors") || rest.equals("warning") || rest.equals("warnings");
+  }
+
+  private void flush() {
+    if (file == null)
+      return;
+    String f = file;
+    file = null;
+    String m = msg.toString();
+    msg.setLength(0);
+    if (severity == NOTE || severity == WARNING && !includeWarnings)
+      return;
+
+    Path p = path(f);
+    errors.add(p, line, line, columnStart, columnEnd, m);
+    if (listener != null)
+      listener.diagnostic(new SourceLocation(p, line, line, columnStart, columnEnd), m, severity == ERROR);
+  }
+
+  private Path path(String name) {
+    Path p = paths.get(name);
+    if (p == null) {
+      File f = new File(name);
+      if (!f.isAbsolute() && baseDir != null)
+        f = new File(baseDir, name);
+      p = new AbsolutePath(f.getAbsolutePath());
+      paths.put(name, p);
+    }
+    return p;
+  }
+
+  private static int digitsEnd(String s, int from) {
+    int i = from;
+    while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+      i++;
+    return i;
+  }
+
+  /**
+   * @return the non-negative number in <code>s[from, to)</code>, or -1.
+   */
+  private static int parseInt(String s, int from, int to) {
+    if (from >= to || to - from > 9)
+      return -1;
+    int n = 0;
+    for (int i = from; i < to; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9')
+        return -1;
+      n = n * 10 + c - '0';
+    }
+    return n;
+  }
+}
@@ -0,0 +1,334 @@
+package org.sugarj.common.errors;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sugarj.common.path.Path;
+import org.sugarj.common.path.PathCodec;
+import org.sugarj.common.util.Pair;
+
+/**
+ * A compact store for large numbers of diagnostics.
+ *
+ * Each column (file, lines, columns, message) is kept in its own int array.
+ * Files and messages are interned, so a diagnostic costs six ints instead of
+ * a {@link SourceLocation}, a {@link Pair} and a message string. A per-file
+ * index is built on the first query by file. {@link #asList()} materializes
+ * the diagnostics on demand.
+ *
+ * Tables are not safe for concurrent modification; queries on a table that
+ * is no longer modified may run concurrently.
+ */
+public class DiagnosticTable implements Serializable {
+
+  private static final long serialVersionUID = -2613488744470932436L;
+
+  private static final int VERSION = 1;
+
+  private transient int size;
+  private transient int[] fileIds;
+  private transient int[] lineStarts;
+  private transient int[] lineEnds;
+  private transient int[] columnStarts;
+  private transient int[] columnEnds;
+  private transient int[] messageIds;
+
+  private transient List<Path> files;
+  private transient Map<Path, Integer> fileIndex;
+  private transient List<String> messages;
+  private transient Map<String, Integer> messageIndex;
+
+  /*
+   * Per-file index, built lazily: the rows of file f are
+   * byFile[fileOffsets[f]] to byFile[fileOffsets[f + 1] - 1] in insertion
+   * order.
+   */
+  private transient int[] fileOffsets;
+  private transient int[] byFile;
+
+  public DiagnosticTable() {
+    this(16);
+  }
+
+  public DiagnosticTable(int capacity) {
+    init(Math.max(capacity, 1));
+  }
+
+  private void init(int capacity) {
+    fileIds = new int[capacity];
+    lineStarts = new int[capacity];
+    lineEnds = new int[capacity];
+    columnStarts = new int[capacity];
+    columnEnds = new int[capacity];
+    messageIds = new int[capacity];
+    files = new ArrayList<>();
+    fileIndex = new HashMap<>();
+    messages = new ArrayList<>();
+    messageIndex = new HashMap<>();
+  }
+
+  public void add(SourceLocation loc, String msg) {
+    add(loc.file, loc.lineStart, loc.lineEnd, loc.columnStart, loc.columnEnd, msg);
+  }
+
+  public void add(Path file, int lineStart, int lineEnd, int columnStart, int columnEnd, String msg) {
+    if (size == fileIds.length)
+      grow(size * 2);
+    fileIds[size] = intern(file, files, fileIndex);
+    lineStarts[size] = lineStart;
+    lineEnds[size] = lineEnd;
+    columnStarts[size] = columnStart;
+    columnEnds[size] = columnEnd;
+    messageIds[size] = intern(msg == null ? "" : msg, messages, messageIndex);
+    size++;
+    fileOffsets = null;
+    byFile = null;
+  }
+
+  public void addAll(DiagnosticTable other) {
+    int n = other.size();
+    for (int i = 0; i < n; i++)
+      add(other.getFile(i), other.lineStarts[i], other.lineEnds[i], other.columnStarts[i], other.columnEnds[i], other.getMessage(i));
+  }
+
+  private static <T> int intern(T value, List<T> values, Map<T, Integer> index) {
+    Integer id = index.get(value);
+    if (id == null) {
+      id = values.size();
+      values.add(value);
+      index.put(value, id);
+    }
+    return id;
+  }
+
+  private void grow(int capacity) {
+    fileIds = Arrays.copyOf(fileIds, capacity);
+    lineStarts = Arrays.copyOf(lineStarts, capacity);
+    lineEnds = Arrays.copyOf(lineEnds, capacity);
+    columnStarts = Arrays.copyOf(columnStarts, capacity);
+    columnEnds = Arrays.copyOf(columnEnds, capacity);
+    messageIds = Arrays.copyOf(messageIds, capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public Path getFile(int i) {
+    return files.get(fileIds[check(i)]);
+  }
+
+  public int getLineStart(int i) {
+    return lineStarts[check(i)];
+  }
+
+  public int getLineEnd(int i) {
+    return lineEnds[check(i)];
+  }
+
+  public int getColumnStart(int i) {
+    return columnStarts[check(i)];
+  }
+
+  public int getColumnEnd(int i) {
+    return columnEnds[check(i)];
+  }
+
+  public String getMessage(int i) {
+    return messages.get(messageIds[check(i)]);
+  }
+
+  /**
+   * @return a new location object for diagnostic <code>i</code>.
+   */
+  public SourceLocation getLocation(int i) {
+    check(i);
+    return new SourceLocation(files.get(fileIds[i]), lineStarts[i], lineEnds[i], columnStarts[i], columnEnds[i]);
+  }
+
+  private int check(int i) {
+    if (i < 0 || i >= size)
+      throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+    return i;
+  }
+
+  /**
+   * @return the distinct files with diagnostics, in order of appearance.
+   */
+  public List<Path> getFiles() {
+    return Collections.unmodifiableList(new ArrayList<>(files));
+  }
+
+  /**
+   * @return the indices of the diagnostics for <code>file</code> in
+   *         insertion order.
+   */
+  public synchronized int[] indicesOf(Path file) {
+    Integer id = fileIndex.get(file);
+    if (id == null)
+      return new int[0];
+    buildFileIndex();
+    return Arrays.copyOfRange(byFile, fileOffsets[id], fileOffsets[id + 1]);
+  }
+
+  private void buildFileIndex() {
+    if (byFile != null)
+      return;
+    int[] offsets = new int[files.size() + 1];
+    for (int i = 0; i < size; i++)
+      offsets[fileIds[i] + 1]++;
+    for (int f = 0; f < files.size(); f++)
+      offsets[f + 1] += offsets[f];
+    int[] next = Arrays.copyOf(offsets, files.size());
+    int[] rows = new int[size];
+    for (int i = 0; i < size; i++)
+      rows[next[fileIds[i]]++] = i;
+    fileOffsets = offsets;
+    byFile = rows;
+  }
+
+  /**
+   * @return an unmodifiable view of all diagnostics. Each access creates a
+   *         fresh copy of the element, so elements compare by
+   *         {@link Object#equals} only, and changing one does not change
+   *         the table.
+   */
+  public List<Pair<SourceLocation, String>> asList() {
+    return new AbstractList<Pair<SourceLocation, String>>() {
+      @Override
+      public Pair<SourceLocation, String> get(int i) {
+        return Pair.create(getLocation(i), getMessage(i));
+      }
+
+      @Override
+      public int size() {
+        return DiagnosticTable.this.size();
+      }
+    };
+  }
+
+  /**
+   * @return an unmodifiable view of the diagnostics for <code>file</code>.
+   *         Elements are fresh copies as in {@link #asList()}.
+   */
+  public List<Pair<SourceLocation, String>> asList(Path file) {
+    final int[] rows = indicesOf(file);
+    return new AbstractList<Pair<SourceLocation, String>>() {
+      @Override
+      public Pair<SourceLocation, String> get(int i) {
+        return Pair.create(getLocation(rows[i]), getMessage(rows[i]));
+      }
+
+      @Override
+      public int size() {
+        return rows.length;
+      }
+    };
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(VERSION);
+    PathCodec.writeVarInt(out, size);
+
+    PathCodec.writeVarInt(out, files.size());
+    PathCodec.Encoder encoder = new PathCodec.Encoder(out);
+    for (Path p : files)
+      encoder.write(p);
+    PathCodec.writeVarInt(out, messages.size());
+    for (String s : messages)
+      PathCodec.writeString(out, s);
+
+    writeColumn(out, fileIds);
+    writeColumn(out, lineStarts);
+    writeColumn(out, lineEnds);
+    writeColumn(out, columnStarts);
+    writeColumn(out, columnEnds);
+    writeColumn(out, messageIds);
+  }
+
+  private void writeColumn(DataOutput out, int[] column) throws IOException {
+    for (int i = 0; i < size; i++)
+      PathCodec.writeVarInt(out, column[i]);
+  }
+
+  /**
+   * @param trusted
+   *          whether to skip the validation of paths.
+   * @see PathCodec.Decoder
+   */
+  public static DiagnosticTable read(DataInput in, boolean trusted) throws IOException {
+    DiagnosticTable table = new DiagnosticTable(1);
+    table.readFrom(in, trusted);
+    return table;
+  }
+
+  private void readFrom(DataInput in, boolean trusted) throws IOException {
+    int version = in.readInt();
+    if (version != VERSION)
+      throw new StreamCorruptedException("Unsupported diagnostics format version " + version + ", expected " + VERSION);
+    int n = readCount(in);
+
+    int fileCount = readCount(in);
+    PathCodec.Decoder decoder = new PathCodec.Decoder(in, trusted);
+    init(Math.max(n, 1));
+    for (int f = 0; f < fileCount; f++)
+      intern(decoder.read(), files, fileIndex);
+    int messageCount = readCount(in);
+    for (int m = 0; m < messageCount; m++)
+      intern(PathCodec.readString(in), messages, messageIndex);
+
+    readColumn(in, fileIds, n, fileCount);
+    readColumn(in, lineStarts, n, -1);
+    readColumn(in, lineEnds, n, -1);
+    readColumn(in, columnStarts, n, -1);
+    readColumn(in, columnEnds, n, -1);
+    readColumn(in, messageIds, n, messageCount);
+    size = n;
+  }
+
+  private static int readCount(DataInput in) throws IOException {
+    int n = PathCodec.readVarInt(in);
+    if (n < 0)
+      throw new StreamCorruptedException("Negative count " + n);
+    return n;
+  }
+
+  /**
+   * @param bound
+   *          exclusive upper bound of valid ids, or -1 for plain values.
+   */
+  private static void readColumn(DataInput in, int[] column, int n, int bound) throws IOException {
+    for (int i = 0; i < n; i++) {
+      int v = PathCodec.readVarInt(in);
+      if (bound >= 0 && (v < 0 || v >= bound))
+        throw new StreamCorruptedException("Invalid id " + v);
+      column[i] = v;
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    write(out);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    readFrom(in, false);
+  }
+}
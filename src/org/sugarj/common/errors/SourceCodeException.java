@@ -3,10 +3,9 @@
  */
 package org.sugarj.common.errors;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
+import org.sugarj.common.path.Path;
 import org.sugarj.common.util.Pair;
 
 /**
@@ -14,28 +13,52 @@ import org.sugarj.common.util.Pair;
  */
 public class SourceCodeException extends Exception {
 
-  private static final long serialVersionUID = 7016122139169186870L;
+  private static final long serialVersionUID = -3409254337585563471L;
   
-  private List<Pair<SourceLocation, String>> errors;
+  private final DiagnosticTable errors;
   
   public SourceCodeException(SourceLocation sourceLocation, String msg) {
     super(msg);
-    this.errors = Collections.singletonList(Pair.create(sourceLocation, msg));
+    this.errors = new DiagnosticTable(1);
+    this.errors.add(sourceLocation, msg);
   }
   
   public SourceCodeException(List<Pair<SourceLocation, String>> errors) {
-    this.errors = Collections.unmodifiableList(errors);
+    this.errors = new DiagnosticTable(errors.size());
+    for (Pair<SourceLocation, String> error : errors)
+      this.errors.add(error.a, error.b);
   }
   
   @SafeVarargs
   public SourceCodeException(Pair<SourceLocation, String>... errors) {
-    this.errors = new ArrayList<Pair<SourceLocation,String>>(errors.length);
+    this.errors = new DiagnosticTable(errors.length);
     for (Pair<SourceLocation, String> error : errors)
-      this.errors.add(error);
-    this.errors = Collections.unmodifiableList(this.errors);
+      this.errors.add(error.a, error.b);
+  }
+  
+  /**
+   * @param errors
+   *          is owned by the exception and must not be modified afterwards.
+   */
+  public SourceCodeException(DiagnosticTable errors) {
+    this.errors = errors;
   }
 
+  /**
+   * @return an unmodifiable view of the errors, materialized on access.
+   *         Each access creates a fresh pair and location, so compare
+   *         elements with <code>equals</code>, not <code>==</code>, and do
+   *         not expect changes to a location to be kept.
+   */
   public List<Pair<SourceLocation, String>> getErrors() {
+    return errors.asList();
+  }
+  
+  public List<Pair<SourceLocation, String>> getErrors(Path file) {
+    return errors.asList(file);
+  }
+  
+  public DiagnosticTable getDiagnostics() {
     return errors;
   }
 }
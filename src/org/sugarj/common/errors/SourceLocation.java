@@ -1,5 +1,7 @@
 package org.sugarj.common.errors;
 
+import java.util.Objects;
+
 import org.sugarj.common.path.Path;
 
 /**
@@ -19,4 +21,19 @@ public class SourceLocation {
     this.columnStart = columnStart;
     this.columnEnd = columnEnd;
   }  
+  
+  @Override
+  public int hashCode() {
+    return Objects.hash(file, lineStart, lineEnd, columnStart, columnEnd);
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof SourceLocation))
+      return false;
+    SourceLocation l = (SourceLocation) o;
+    return lineStart == l.lineStart && lineEnd == l.lineEnd && columnStart == l.columnStart && columnEnd == l.columnEnd && Objects.equals(file, l.file);
+  }
 }
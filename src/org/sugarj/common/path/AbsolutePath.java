@@ -14,7 +14,11 @@ import org.sugarj.common.FileCommands;
 @Deprecated
 public class AbsolutePath extends Path {
 
+  private static final PathPool<AbsolutePath> POOL = new PathPool<>();
+
   private String path;
+  private transient File file;
+  private transient java.nio.file.Path nioPath;
 
   /**
    * For externalization only.
@@ -27,7 +31,17 @@ public class AbsolutePath extends Path {
   public AbsolutePath(String path) {
     if (!acceptable(path))
       throw new IllegalArgumentException("AbsolutePath constructed on unacceptable argument: " + path);
-    this.path = trimBack(path).replace(File.separatorChar, '/');
+    this.path = normalize(path);
+  }
+  
+  /**
+   * Creates a path from an already normalized, acceptable string without
+   * checking it again.
+   */
+  static AbsolutePath trusted(String path) {
+    AbsolutePath p = new AbsolutePath();
+    p.path = path;
+    return p;
   }
   
   @Override
@@ -35,6 +49,22 @@ public class AbsolutePath extends Path {
     return path;
   }
   
+  @Override
+  public File getFile() {
+    File f = file;
+    if (f == null)
+      file = f = new File(path);
+    return f;
+  }
+  
+  @Override
+  public java.nio.file.Path toPath() {
+    java.nio.file.Path p = nioPath;
+    if (p == null)
+      nioPath = p = getFile().toPath();
+    return p;
+  }
+  
   // cai 24.09.12
   // test whether `path` is an acceptable argument to
   // the constructor of AbsolutePath. A path is acceptable
@@ -42,11 +72,46 @@ public class AbsolutePath extends Path {
   // 1. it is an absolute path according to Java, or
   // 2. its root is a dot.
   public static boolean acceptable(String path){
-    return new File(path).isAbsolute()
+    return isAbsolute(path)
         || path.startsWith("./")
         || path.startsWith("." + File.separator)
         || path.equals(".");
   }
+  
+  /**
+   * Same as <code>new File(path).isAbsolute()</code>, but decided on the
+   * characters of <code>path</code> without allocating a {@link File}.
+   */
+  public static boolean isAbsolute(String path) {
+    if (File.separatorChar == '/')
+      return !path.isEmpty() && path.charAt(0) == '/';
+    
+    // Windows: drive letter followed by a separator, or UNC path
+    int len = path.length();
+    if (len >= 3 && path.charAt(1) == ':' && isSeparator(path.charAt(2))) {
+      char c = path.charAt(0);
+      return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+    return len >= 2 && isSeparator(path.charAt(0)) && isSeparator(path.charAt(1));
+  }
+  
+  private static boolean isSeparator(char c) {
+    return c == '/' || c == File.separatorChar;
+  }
+  
+  /**
+   * Drops trailing separators and replaces the platform separator by '/'.
+   */
+  private static String normalize(String path) {
+    int end = path.length();
+    while (end > 0 && path.charAt(end - 1) == File.separatorChar)
+      end--;
+    if (end < path.length())
+      path = path.substring(0, end);
+    if (File.separatorChar != '/')
+      path = path.replace(File.separatorChar, '/');
+    return path;
+  }
 
   @Override
   public void writeExternal(ObjectOutput out) throws IOException {
@@ -60,6 +125,13 @@ public class AbsolutePath extends Path {
       throw new IllegalArgumentException("AbsolutePath constructed on unacceptable argument: " + path);
   }
 
+  @Override
+  public AbsolutePath intern() {
+    if (interned)
+      return this;
+    return POOL.intern(this, path);
+  }
+
   @Override
   public AbsolutePath replaceExtension(String newExt) {
     return new AbsolutePath(FileCommands.dropExtension(getAbsolutePath()) + "." + newExt);
@@ -9,12 +9,26 @@ import java.io.File;
 @Deprecated
 public abstract class Path implements Externalizable {
 
+  /**
+   * Whether this is a canonical instance.
+   */
+  transient boolean interned;
+
+  /**
+   * Implementations should return the same string instance on repeated
+   * calls, so that {@link #hashCode()} and {@link #equals(Object)} can rely
+   * on the hash cached by {@link String}.
+   */
   public abstract String getAbsolutePath();
   
   public File getFile() {
     return new File(getAbsolutePath());
   }
   
+  public java.nio.file.Path toPath() {
+    return getFile().toPath();
+  }
+  
   public String toString() {
     return getAbsolutePath();
   }
@@ -24,11 +38,32 @@ public abstract class Path implements Externalizable {
   }
   
   public boolean equals(Object o) {
-    return o instanceof Path && ((Path) o).getAbsolutePath().equals(getAbsolutePath());
+    if (this == o)
+      return true;
+    if (!(o instanceof Path))
+      return false;
+    Path p = (Path) o;
+    // canonical absolute paths are unique per absolute path
+    if (interned && p.interned && this instanceof AbsolutePath && p instanceof AbsolutePath)
+      return false;
+    return p.getAbsolutePath().equals(getAbsolutePath());
   }
 
   public abstract Path replaceExtension(String newExt);
   
+  /**
+   * Returns the canonical instance equal to this path. Canonical instances
+   * are only weakly referenced by their pool and must not be mutated.
+   * Canonical {@link AbsolutePath}s compare by identity with each other.
+   */
+  public Path intern() {
+    return this;
+  }
+  
+  public boolean isInterned() {
+    return interned;
+  }
+  
   protected String trimFront(String path) {
     while (path.startsWith(File.separator))
       path = path.substring(1, path.length());
@@ -0,0 +1,184 @@
+package org.sugarj.common.path;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary format for sequences of {@link Path}s.
+ *
+ * Every path is written once; later occurrences of an equal path, in
+ * particular shared base paths of {@link RelativePath}s, are written as a
+ * back reference into the table of previously written paths. Strings are
+ * written as UTF-8 with a variable-length size prefix.
+ *
+ * A stream starts with a format version. When the data is trusted, for
+ * example because this process wrote it, the decoder skips the checks that
+ * {@link AbsolutePath#AbsolutePath(String)} performs.
+ */
+public class PathCodec {
+
+  public static final int VERSION = 1;
+
+  private static final int NULL = 0;
+  private static final int REF = 1;
+  private static final int ABSOLUTE = 2;
+  private static final int RELATIVE = 3;
+
+  private PathCodec() { }
+
+  public static class Encoder {
+    private final DataOutput out;
+    private final Map<String, Integer> absolutes = new HashMap<>();
+    private final Map<String, Integer> relatives = new HashMap<>();
+    private int next;
+
+    /**
+     * Writes the format version to <code>out</code>.
+     */
+    public Encoder(DataOutput out) throws IOException {
+      this.out = out;
+      writeVarInt(out, VERSION);
+    }
+
+    public void write(Path path) throws IOException {
+      writePath(path);
+    }
+
+    /**
+     * @return the table index of <code>path</code>, or -1 for null.
+     */
+    private int writePath(Path path) throws IOException {
+      if (path == null) {
+        out.writeByte(NULL);
+        return -1;
+      }
+
+      if (path instanceof AbsolutePath) {
+        String s = path.getAbsolutePath();
+        Integer ref = absolutes.get(s);
+        if (ref != null)
+          return writeRef(ref);
+        out.writeByte(ABSOLUTE);
+        writeString(out, s);
+        absolutes.put(s, next);
+        return next++;
+      }
+
+      if (path instanceof RelativePath) {
+        RelativePath rel = (RelativePath) path;
+        Integer baseRef = null;
+        if (rel.getBasePath() instanceof AbsolutePath)
+          baseRef = absolutes.get(rel.getBasePath().getAbsolutePath());
+
+        // the key is only known without writing anything if the base is a
+        // known absolute path or no path at all
+        if (baseRef != null || rel.getBasePath() == null) {
+          String key = (baseRef == null ? -1 : baseRef) + "\0" + rel.getRelativePath();
+          Integer ref = relatives.get(key);
+          if (ref != null)
+            return writeRef(ref);
+        }
+
+        out.writeByte(RELATIVE);
+        int base = writePath(rel.getBasePath());
+        writeString(out, rel.getRelativePath());
+        relatives.put(base + "\0" + rel.getRelativePath(), next);
+        return next++;
+      }
+
+      throw new IllegalArgumentException("Unsupported path type: " + path.getClass().getName());
+    }
+
+    private int writeRef(int ref) throws IOException {
+      out.writeByte(REF);
+      writeVarInt(out, ref);
+      return ref;
+    }
+  }
+
+  public static class Decoder {
+    private final DataInput in;
+    private final boolean trusted;
+    private final List<Path> table = new ArrayList<>();
+
+    /**
+     * Reads and checks the format version from <code>in</code>.
+     *
+     * @param trusted
+     *          whether to skip the validation of absolute paths.
+     */
+    public Decoder(DataInput in, boolean trusted) throws IOException {
+      this.in = in;
+      this.trusted = trusted;
+      int version = readVarInt(in);
+      if (version != VERSION)
+        throw new StreamCorruptedException("Unsupported path format version " + version + ", expected " + VERSION);
+    }
+
+    public Path read() throws IOException {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+      case NULL:
+        return null;
+      case REF:
+        int ref = readVarInt(in);
+        if (ref >= table.size())
+          throw new StreamCorruptedException("Invalid path reference " + ref);
+        return table.get(ref);
+      case ABSOLUTE:
+        String s = readString(in);
+        Path abs = trusted ? AbsolutePath.trusted(s) : new AbsolutePath(s);
+        table.add(abs);
+        return abs;
+      case RELATIVE:
+        Path base = read();
+        Path rel = new RelativePath(base, readString(in));
+        table.add(rel);
+        return rel;
+      default:
+        throw new StreamCorruptedException("Invalid path tag " + tag);
+      }
+    }
+  }
+
+  public static void writeVarInt(DataOutput out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  public static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new StreamCorruptedException("Malformed variable-length integer");
+  }
+
+  public static void writeString(DataOutput out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  public static String readString(DataInput in) throws IOException {
+    int length = readVarInt(in);
+    if (length < 0)
+      throw new StreamCorruptedException("Negative string length " + length);
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
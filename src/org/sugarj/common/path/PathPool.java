@@ -0,0 +1,59 @@
+package org.sugarj.common.path;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of paths. Instances are only weakly referenced, so
+ * that the pool does not keep paths alive that are not used anymore.
+ */
+@Deprecated
+class PathPool<P extends Path> {
+
+  private static final class Ref<P> extends WeakReference<P> {
+    final String key;
+
+    Ref(P path, String key, ReferenceQueue<? super P> queue) {
+      super(path, queue);
+      this.key = key;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Ref<P>> pool = new ConcurrentHashMap<>();
+  private final ReferenceQueue<P> queue = new ReferenceQueue<>();
+
+  /**
+   * @return the canonical instance for <code>key</code>. If there is none
+   *         yet, <code>p</code> becomes canonical.
+   */
+  P intern(P p, String key) {
+    expunge();
+
+    for (;;) {
+      Ref<P> ref = pool.get(key);
+      if (ref != null) {
+        P canonical = ref.get();
+        if (canonical != null)
+          return canonical;
+        pool.remove(key, ref);
+      }
+
+      if (pool.putIfAbsent(key, new Ref<P>(p, key, queue)) == null) {
+        p.interned = true;
+        return p;
+      }
+    }
+  }
+
+  int size() {
+    expunge();
+    return pool.size();
+  }
+
+  private void expunge() {
+    Ref<?> ref;
+    while ((ref = (Ref<?>) queue.poll()) != null)
+      pool.remove(ref.key, ref);
+  }
+}
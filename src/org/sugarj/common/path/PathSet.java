@@ -0,0 +1,93 @@
+package org.sugarj.common.path;
+
+import java.util.List;
+
+/**
+ * A set of paths stored in a {@link PathTrie}, with queries and removal of
+ * all paths below a directory. Not thread-safe.
+ */
+public class PathSet {
+
+  private final PathTrie<Boolean> trie = new PathTrie<>();
+
+  /**
+   * @return true if the set did not contain <code>path</code> yet.
+   */
+  public boolean add(String path) {
+    return trie.put(path, Boolean.TRUE) == null;
+  }
+
+  public boolean add(Path path) {
+    return add(path.getAbsolutePath());
+  }
+
+  public boolean add(java.nio.file.Path path) {
+    return add(path.toString());
+  }
+
+  public boolean contains(String path) {
+    return trie.containsKey(path);
+  }
+
+  public boolean contains(Path path) {
+    return contains(path.getAbsolutePath());
+  }
+
+  public boolean contains(java.nio.file.Path path) {
+    return contains(path.toString());
+  }
+
+  public boolean remove(String path) {
+    return trie.remove(path) != null;
+  }
+
+  public boolean remove(Path path) {
+    return remove(path.getAbsolutePath());
+  }
+
+  public boolean remove(java.nio.file.Path path) {
+    return remove(path.toString());
+  }
+
+  public int size() {
+    return trie.size();
+  }
+
+  public boolean isEmpty() {
+    return trie.isEmpty();
+  }
+
+  public void clear() {
+    trie.clear();
+  }
+
+  /**
+   * @return <code>dir</code> and all paths below it that are in the set.
+   */
+  public List<String> under(String dir) {
+    return trie.keysUnder(dir);
+  }
+
+  public List<String> under(Path dir) {
+    return under(dir.getAbsolutePath());
+  }
+
+  public int countUnder(String dir) {
+    return trie.countUnder(dir);
+  }
+
+  /**
+   * @return the number of removed paths.
+   */
+  public int removeUnder(String dir) {
+    return trie.removeUnder(dir);
+  }
+
+  public int removeUnder(Path dir) {
+    return removeUnder(dir.getAbsolutePath());
+  }
+
+  public int removeUnder(java.nio.file.Path dir) {
+    return removeUnder(dir.toString());
+  }
+}
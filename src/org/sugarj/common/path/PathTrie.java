@@ -0,0 +1,365 @@
+package org.sugarj.common.path;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A map from paths to values that stores paths as sequences of segments in
+ * a shared prefix tree. Paths below a common directory share the nodes of
+ * that directory, and equal segment names share a single string, so large
+ * sets of paths with long common prefixes take a fraction of the memory of
+ * their strings.
+ *
+ * The tree supports queries and removal of all paths below a directory,
+ * which take time proportional to the number of affected paths.
+ *
+ * Keys are absolute or relative paths separated by '/' (or the platform
+ * separator). Not thread-safe.
+ */
+public class PathTrie<V> {
+
+  private static final Node<?>[] NO_CHILDREN = new Node<?>[0];
+
+  private static final class Node<V> {
+    final String segment;
+    Node<V>[] children;
+    int childCount;
+    boolean hasValue;
+    V value;
+    /**
+     * The number of entries in this subtree, including this node.
+     */
+    int size;
+
+    @SuppressWarnings("unchecked")
+    Node(String segment) {
+      this.segment = segment;
+      this.children = (Node<V>[]) NO_CHILDREN;
+    }
+
+    int indexOf(String segment) {
+      int lo = 0;
+      int hi = childCount - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int c = children[mid].segment.compareTo(segment);
+        if (c < 0)
+          lo = mid + 1;
+        else if (c > 0)
+          hi = mid - 1;
+        else
+          return mid;
+      }
+      return -(lo + 1);
+    }
+
+    Node<V> child(String segment) {
+      int i = indexOf(segment);
+      return i < 0 ? null : children[i];
+    }
+
+    Node<V> addChild(String segment) {
+      int i = indexOf(segment);
+      if (i >= 0)
+        return children[i];
+
+      int insert = -(i + 1);
+      if (childCount == children.length)
+        children = Arrays.copyOf(children, childCount == 0 ? 2 : childCount + (childCount >> 1) + 1);
+      System.arraycopy(children, insert, children, insert + 1, childCount - insert);
+      Node<V> child = new Node<>(segment);
+      children[insert] = child;
+      childCount++;
+      return child;
+    }
+
+    void removeChild(Node<V> child) {
+      int i = indexOf(child.segment);
+      System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+      children[--childCount] = null;
+      if (childCount == 0)
+        clearChildren();
+    }
+
+    @SuppressWarnings("unchecked")
+    void clearChildren() {
+      children = (Node<V>[]) NO_CHILDREN;
+      childCount = 0;
+    }
+  }
+
+  private final Node<V> root = new Node<>("");
+  /**
+   * Canonical segment strings. Entries vanish once no node refers to their
+   * string anymore, so removed paths do not leave their segments behind.
+   */
+  private final Map<String, WeakReference<String>> segments = new WeakHashMap<>();
+
+  public int size() {
+    return root.size;
+  }
+
+  public boolean isEmpty() {
+    return root.size == 0;
+  }
+
+  public V put(String path, V value) {
+    String[] segs = split(path);
+    Node<V> node = root;
+    for (String seg : segs)
+      node = node.addChild(canonical(seg));
+
+    V old = node.value;
+    node.value = value;
+    if (!node.hasValue) {
+      node.hasValue = true;
+      adjustSizes(segs, segs.length, 1);
+    }
+    return old;
+  }
+
+  public V put(Path path, V value) {
+    return put(path.getAbsolutePath(), value);
+  }
+
+  public V put(java.nio.file.Path path, V value) {
+    return put(path.toString(), value);
+  }
+
+  public V get(String path) {
+    Node<V> node = find(split(path));
+    return node == null ? null : node.value;
+  }
+
+  public V get(Path path) {
+    return get(path.getAbsolutePath());
+  }
+
+  public V get(java.nio.file.Path path) {
+    return get(path.toString());
+  }
+
+  public boolean containsKey(String path) {
+    Node<V> node = find(split(path));
+    return node != null && node.hasValue;
+  }
+
+  public boolean containsKey(Path path) {
+    return containsKey(path.getAbsolutePath());
+  }
+
+  public boolean containsKey(java.nio.file.Path path) {
+    return containsKey(path.toString());
+  }
+
+  public V remove(String path) {
+    String[] segs = split(path);
+    Node<V> node = find(segs);
+    if (node == null || !node.hasValue)
+      return null;
+
+    V old = node.value;
+    node.value = null;
+    node.hasValue = false;
+    adjustSizes(segs, segs.length, -1);
+    prune(segs);
+    return old;
+  }
+
+  public V remove(Path path) {
+    return remove(path.getAbsolutePath());
+  }
+
+  public V remove(java.nio.file.Path path) {
+    return remove(path.toString());
+  }
+
+  public void clear() {
+    root.clearChildren();
+    root.hasValue = false;
+    root.value = null;
+    root.size = 0;
+    segments.clear();
+  }
+
+  /**
+   * @return the number of entries for <code>dir</code> and all paths below
+   *         it. Takes time proportional to the depth of <code>dir</code>.
+   */
+  public int countUnder(String dir) {
+    Node<V> node = find(split(dir));
+    return node == null ? 0 : node.size;
+  }
+
+  /**
+   * Calls <code>visitor</code> for <code>dir</code> and every path below
+   * it that has an entry, in lexicographic order of segments.
+   */
+  public void visitUnder(String dir, BiConsumer<String, ? super V> visitor) {
+    String[] segs = split(dir);
+    Node<V> node = find(segs);
+    if (node == null)
+      return;
+
+    StringBuilder prefix = new StringBuilder();
+    for (int i = 0; i < segs.length; i++) {
+      if (i > 0)
+        prefix.append('/');
+      prefix.append(segs[i]);
+    }
+    visit(node, prefix, visitor);
+  }
+
+  public void visitUnder(Path dir, BiConsumer<String, ? super V> visitor) {
+    visitUnder(dir.getAbsolutePath(), visitor);
+  }
+
+  /**
+   * Calls <code>visitor</code> for every entry.
+   */
+  public void visitAll(BiConsumer<String, ? super V> visitor) {
+    visit(root, new StringBuilder(), visitor);
+  }
+
+  /**
+   * @return <code>dir</code> and all paths below it that have an entry.
+   */
+  public List<String> keysUnder(String dir) {
+    final List<String> keys = new ArrayList<>(countUnder(dir));
+    visitUnder(dir, new BiConsumer<String, V>() {
+      @Override
+      public void accept(String path, V value) {
+        keys.add(path);
+      }
+    });
+    return keys;
+  }
+
+  public List<String> keysUnder(Path dir) {
+    return keysUnder(dir.getAbsolutePath());
+  }
+
+  /**
+   * Removes <code>dir</code> and all paths below it. Takes time
+   * proportional to the depth of <code>dir</code>; the detached subtree is
+   * left to the garbage collector.
+   *
+   * @return the number of removed entries.
+   */
+  public int removeUnder(String dir) {
+    String[] segs = split(dir);
+    if (segs.length == 0) {
+      int removed = root.size;
+      clear();
+      return removed;
+    }
+
+    Node<V> parent = find(Arrays.copyOf(segs, segs.length - 1));
+    Node<V> node = parent == null ? null : parent.child(segs[segs.length - 1]);
+    if (node == null)
+      return 0;
+
+    int removed = node.size;
+    parent.removeChild(node);
+    adjustSizes(segs, segs.length - 1, -removed);
+    prune(Arrays.copyOf(segs, segs.length - 1));
+    return removed;
+  }
+
+  public int removeUnder(Path dir) {
+    return removeUnder(dir.getAbsolutePath());
+  }
+
+  public int removeUnder(java.nio.file.Path dir) {
+    return removeUnder(dir.toString());
+  }
+
+  private void visit(Node<V> node, StringBuilder path, BiConsumer<String, ? super V> visitor) {
+    if (node.hasValue)
+      visitor.accept(path.length() == 0 && node != root ? "/" : path.toString(), node.value);
+
+    int length = path.length();
+    for (int i = 0; i < node.childCount; i++) {
+      Node<V> child = node.children[i];
+      if (node != root)
+        path.append('/');
+      path.append(child.segment);
+      visit(child, path, visitor);
+      path.setLength(length);
+    }
+  }
+
+  private Node<V> find(String[] segs) {
+    Node<V> node = root;
+    for (int i = 0; i < segs.length && node != null; i++)
+      node = node.child(segs[i]);
+    return node;
+  }
+
+  /**
+   * Adds <code>delta</code> to the sizes of the root and the nodes of the
+   * first <code>depth</code> segments.
+   */
+  private void adjustSizes(String[] segs, int depth, int delta) {
+    Node<V> node = root;
+    node.size += delta;
+    for (int i = 0; i < depth; i++) {
+      node = node.child(segs[i]);
+      node.size += delta;
+    }
+  }
+
+  /**
+   * Removes empty nodes along the given path, bottom-up.
+   */
+  private void prune(String[] segs) {
+    for (int depth = segs.length; depth > 0; depth--) {
+      Node<V> parent = find(Arrays.copyOf(segs, depth - 1));
+      Node<V> node = parent.child(segs[depth - 1]);
+      if (node.size > 0)
+        return;
+      parent.removeChild(node);
+    }
+  }
+
+  private String canonical(String segment) {
+    WeakReference<String> ref = segments.get(segment);
+    String s = ref == null ? null : ref.get();
+    if (s == null) {
+      segments.put(segment, new WeakReference<>(segment));
+      s = segment;
+    }
+    return s;
+  }
+
+  /**
+   * Splits a path into its segments. Absolute Unix paths start with an
+   * empty segment; repeated and trailing separators are ignored.
+   */
+  static String[] split(String path) {
+    if (File.separatorChar != '/')
+      path = path.replace(File.separatorChar, '/');
+
+    List<String> segs = new ArrayList<>();
+    int start = 0;
+    if (path.startsWith("/")) {
+      segs.add("");
+      start = 1;
+    }
+    while (start < path.length()) {
+      int end = path.indexOf('/', start);
+      if (end < 0)
+        end = path.length();
+      if (end > start)
+        segs.add(path.substring(start, end));
+      start = end + 1;
+    }
+    return segs.toArray(new String[segs.size()]);
+  }
+}
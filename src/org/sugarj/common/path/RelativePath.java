@@ -12,8 +12,25 @@ import org.sugarj.common.FileCommands;
  */
 @Deprecated
 public class RelativePath extends Path {
+  private static final PathPool<RelativePath> POOL = new PathPool<>();
+  
+  /**
+   * The absolute path computed for a particular string representation of
+   * the base path.
+   */
+  private static final class Resolved {
+    final String base;
+    final String absolutePath;
+    
+    Resolved(String base, String absolutePath) {
+      this.base = base;
+      this.absolutePath = absolutePath;
+    }
+  }
+  
   private String relativePath;
   private Path base;
+  private transient volatile Resolved resolved;
     
   /**
    *  For externalization only.
@@ -37,6 +54,8 @@ public class RelativePath extends Path {
   }
   
   public void setBasePath(Path base) {
+    if (interned)
+      throw new IllegalStateException("Cannot change the base of an interned path: " + this);
     this.base = base;
   }
   
@@ -48,8 +67,16 @@ public class RelativePath extends Path {
   public String getAbsolutePath() {
     if (getBasePath() == null)
       throw new IllegalStateException("Base of relative path is still open; cannot construct absolute path yet.");
-      
-    return getBasePath() + File.separator + getRelativePath();
+    
+    // The base returns the same string instance as long as it is unchanged,
+    // so we only concatenate again if the base changed.
+    String baseString = getBasePath().toString();
+    Resolved r = resolved;
+    if (r == null || r.base != baseString) {
+      r = new Resolved(baseString, baseString + File.separator + getRelativePath());
+      resolved = r;
+    }
+    return r.absolutePath;
   }
 
   @Override
@@ -71,6 +98,22 @@ public class RelativePath extends Path {
     return getAbsolutePath();
   }
 
+  /**
+   * Interns the base path as well. Relative paths are canonical per base
+   * and relative path, since different splits of the same absolute path
+   * must keep their relative paths. The base of an interned relative path
+   * cannot be changed anymore.
+   */
+  @Override
+  public RelativePath intern() {
+    if (interned)
+      return this;
+    if (base == null)
+      throw new IllegalStateException("Base of relative path is still open; cannot intern it yet.");
+    Path canonicalBase = base.intern();
+    return POOL.intern(new RelativePath(canonicalBase, relativePath), canonicalBase.toString() + '\0' + relativePath);
+  }
+
   @Override
   public RelativePath replaceExtension(String newExt) {
     return new RelativePath(getBasePath(), FileCommands.dropExtension(this.getRelativePath()) + "." + newExt);
@@ -0,0 +1,30 @@
+package org.sugarj.common.trace;
+
+import java.io.OutputStream;
+
+/**
+ * Writes tasks in the Chrome trace event format (JSON array), which can be
+ * loaded into chrome://tracing, Perfetto or speedscope.
+ */
+public class ChromeTraceSink extends JsonTraceSink {
+
+  private boolean first = true;
+
+  public ChromeTraceSink(OutputStream out) {
+    super(out);
+    write("[\n");
+  }
+
+  @Override
+  protected void appendEvent(StringBuilder b, String phase, String name, int level, long threadId, long nanos, long id, long parent, String result) {
+    if (!first)
+      b.append(",\n");
+    first = false;
+    appendFields(b, phase, name, level, threadId, nanos, id, parent, result);
+  }
+
+  @Override
+  protected void finish() {
+    write("\n]\n");
+  }
+}
@@ -0,0 +1,21 @@
+package org.sugarj.common.trace;
+
+import java.io.OutputStream;
+
+/**
+ * Writes one Chrome trace event per line (JSONL). Each event is flushed as
+ * it is written, so the trace stays readable up to the last event when the
+ * build does not terminate normally.
+ */
+public class JsonLinesTraceSink extends JsonTraceSink {
+
+  public JsonLinesTraceSink(OutputStream out) {
+    super(out, true);
+  }
+
+  @Override
+  protected void appendEvent(StringBuilder b, String phase, String name, int level, long threadId, long nanos, long id, long parent, String result) {
+    appendFields(b, phase, name, level, threadId, nanos, id, parent, result);
+    b.append('\n');
+  }
+}
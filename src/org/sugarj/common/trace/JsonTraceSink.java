@@ -0,0 +1,168 @@
+package org.sugarj.common.trace;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Common base of trace sinks that write one JSON object per event.
+ * Timestamps are written in microseconds relative to the creation of the
+ * sink. Task ids and parent ids are written to the event's args, linking
+ * tasks to parents on other threads.
+ */
+public abstract class JsonTraceSink implements TraceSink {
+
+  private final Writer writer;
+  private final boolean flushEvents;
+  private final long origin = System.nanoTime();
+  private final StringBuilder event = new StringBuilder(128);
+  private IOException failure;
+
+  protected JsonTraceSink(OutputStream out) {
+    this(out, false);
+  }
+
+  /**
+   * @param flushEvents
+   *          whether to flush the stream after each event, so that the trace
+   *          is complete up to the last event even if the JVM is killed.
+   */
+  protected JsonTraceSink(OutputStream out, boolean flushEvents) {
+    this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+    this.flushEvents = flushEvents;
+  }
+
+  @Override
+  public synchronized void begin(String name, int level, long threadId, long nanoTime, long id, long parent) {
+    event.setLength(0);
+    appendEvent(event, "B", name, level, threadId, nanoTime - origin, id, parent, null);
+    writeEvent(event);
+  }
+
+  @Override
+  public synchronized void end(String name, int level, long threadId, long nanoTime, long id, String result) {
+    event.setLength(0);
+    appendEvent(event, "E", name, level, threadId, nanoTime - origin, id, -1, result);
+    writeEvent(event);
+  }
+
+  /**
+   * Appends a single event to <code>b</code>, including any separators.
+   *
+   * @param parent
+   *          the id of the enclosing task, 0 for none, or -1 if not known
+   *          (end events).
+   */
+  protected abstract void appendEvent(StringBuilder b, String phase, String name, int level, long threadId, long nanos, long id, long parent, String result);
+
+  protected static void appendFields(StringBuilder b, String phase, String name, int level, long threadId, long nanos, long id, long parent, String result) {
+    b.append("{\"name\":");
+    appendString(b, name);
+    b.append(",\"cat\":\"");
+    appendCategories(b, level);
+    b.append('"');
+    b.append(",\"ph\":\"").append(phase).append('"');
+    b.append(",\"ts\":").append(nanos / 1000).append('.');
+    long fraction = nanos % 1000;
+    if (fraction < 100)
+      b.append('0');
+    if (fraction < 10)
+      b.append('0');
+    b.append(fraction);
+    b.append(",\"pid\":1,\"tid\":").append(threadId);
+    b.append(",\"args\":{\"level\":").append(level);
+    b.append(",\"id\":").append(id);
+    if (parent >= 0)
+      b.append(",\"parent\":").append(parent);
+    if (result != null) {
+      b.append(",\"result\":");
+      appendString(b, result);
+    }
+    b.append("}}");
+  }
+
+  /**
+   * Names of the level bits defined in {@link org.sugarj.common.Log}.
+   */
+  private static final String[] LEVEL_NAMES = { "core", "parse", "transform", "import", "baselang", "caching", "detail" };
+
+  private static void appendCategories(StringBuilder b, int level) {
+    boolean first = true;
+    for (int i = 0; i < LEVEL_NAMES.length; i++)
+      if ((level & (1 << i)) != 0) {
+        if (!first)
+          b.append(',');
+        b.append(LEVEL_NAMES[i]);
+        first = false;
+      }
+  }
+
+  protected static void appendString(StringBuilder b, String s) {
+    if (s == null)
+      s = "";
+    b.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"':
+        b.append("\\\"");
+        break;
+      case '\\':
+        b.append("\\\\");
+        break;
+      case '\n':
+        b.append("\\n");
+        break;
+      case '\r':
+        b.append("\\r");
+        break;
+      case '\t':
+        b.append("\\t");
+        break;
+      default:
+        if (c < 0x20)
+          b.append(String.format("\\u%04x", (int) c));
+        else
+          b.append(c);
+      }
+    }
+    b.append('"');
+  }
+
+  protected synchronized void write(CharSequence s) {
+    if (failure != null)
+      return;
+    try {
+      writer.append(s);
+    } catch (IOException e) {
+      failure = e;
+    }
+  }
+
+  private void writeEvent(CharSequence s) {
+    write(s);
+    if (flushEvents && failure == null)
+      try {
+        writer.flush();
+      } catch (IOException e) {
+        failure = e;
+      }
+  }
+
+  /**
+   * Writes the closing part of the trace, if any.
+   */
+  protected void finish() {
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    finish();
+    writer.close();
+    if (failure != null)
+      throw failure;
+  }
+}
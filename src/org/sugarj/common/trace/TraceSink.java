@@ -0,0 +1,33 @@
+package org.sugarj.common.trace;
+
+import java.io.Closeable;
+
+/**
+ * Receives the begin and end events of all tasks logged through
+ * {@link org.sugarj.common.Log}, independent of the logging level.
+ *
+ * Implementations must be thread-safe. Events of one thread arrive in
+ * order; events of different threads may interleave arbitrarily.
+ *
+ * Each task has a positive id, unique within the JVM, and names the id of
+ * the task it is nested in. The parent may run on another thread when the
+ * task was begun through {@link org.sugarj.common.Log#enter}.
+ */
+public interface TraceSink extends Closeable {
+
+  /**
+   * @param level
+   *          the level bits the task was logged with.
+   * @param nanoTime
+   *          as obtained from {@link System#nanoTime()}.
+   * @param parent
+   *          the id of the enclosing task, or 0 for a top-level task.
+   */
+  public void begin(String name, int level, long threadId, long nanoTime, long id, long parent);
+
+  /**
+   * @param result
+   *          the message the task was ended with, e.g., "done".
+   */
+  public void end(String name, int level, long threadId, long nanoTime, long id, String result);
+}
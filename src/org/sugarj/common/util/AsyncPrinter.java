@@ -0,0 +1,157 @@
+package org.sugarj.common.util;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Prints text on a dedicated writer thread. Callers only append to a
+ * {@link MpscRingBuffer}; the writer thread drains it in batches, merges
+ * consecutive texts for the same stream and flushes each stream once per
+ * batch.
+ */
+public class AsyncPrinter {
+
+  /**
+   * What to do when the buffer is full.
+   */
+  public static enum OverflowPolicy {
+    /**
+     * Discard the text. The number of discarded texts is reported later.
+     */
+    DROP,
+    /**
+     * Wait until the writer thread made room.
+     */
+    BLOCK
+  }
+
+  private static final class Event {
+    final PrintStream stream;
+    final String text;
+
+    Event(PrintStream stream, String text) {
+      this.stream = stream;
+      this.text = text;
+    }
+  }
+
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final MpscRingBuffer<Event> buffer;
+  private final OverflowPolicy policy;
+  private final Thread writer;
+  private final AtomicLong dropped = new AtomicLong();
+
+  private volatile boolean running = true;
+  private volatile boolean parked;
+  private volatile long written;
+
+  public AsyncPrinter(int capacity, OverflowPolicy policy) {
+    this.buffer = new MpscRingBuffer<>(capacity);
+    this.policy = policy;
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "sugarj-log-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  public void print(PrintStream stream, String text) {
+    if (!running) {
+      stream.print(text);
+      return;
+    }
+    
+    Event e = new Event(stream, text);
+    while (!buffer.offer(e)) {
+      if (policy == OverflowPolicy.DROP) {
+        dropped.incrementAndGet();
+        return;
+      }
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(1000);
+    }
+    if (parked)
+      LockSupport.unpark(writer);
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Blocks until all text printed before this call has been written and the
+   * target streams have been flushed.
+   */
+  public void flush() {
+    long target = buffer.producedCount();
+    while (written < target && writer.isAlive()) {
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(100000);
+    }
+  }
+
+  /**
+   * Writes all pending text and stops the writer thread.
+   */
+  public void shutdown() {
+    flush();
+    running = false;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeLoop() {
+    StringBuilder batch = new StringBuilder();
+    while (running || !buffer.isEmpty()) {
+      if (!writeBatch(batch)) {
+        parked = true;
+        if (running && buffer.isEmpty())
+          LockSupport.parkNanos(this, PARK_NANOS);
+        parked = false;
+      }
+    }
+  }
+
+  /**
+   * @return false if there was nothing to write.
+   */
+  private boolean writeBatch(StringBuilder batch) {
+    Event e = buffer.poll();
+    if (e == null)
+      return false;
+
+    PrintStream current = e.stream;
+    int count = 0;
+    do {
+      if (e.stream != current) {
+        write(current, batch);
+        current = e.stream;
+      }
+      batch.append(e.text);
+    } while (++count < buffer.capacity() && (e = buffer.poll()) != null);
+
+    long lost = dropped.getAndSet(0);
+    if (lost > 0)
+      batch.append("[").append(lost).append(" log messages dropped]").append(System.lineSeparator());
+    write(current, batch);
+
+    written = buffer.consumedCount();
+    return true;
+  }
+
+  private static void write(PrintStream stream, StringBuilder batch) {
+    stream.print(batch);
+    stream.flush();
+    batch.setLength(0);
+  }
+}
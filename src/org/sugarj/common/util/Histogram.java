@@ -0,0 +1,143 @@
+package org.sugarj.common.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values.
+ *
+ * Values are grouped into log-linear buckets: every power of two is split
+ * into {@link #SUB_BUCKETS} equally sized sub-buckets. Percentiles are
+ * thus reported with a relative error of at most 1/{@link #SUB_BUCKETS},
+ * independent of the magnitude of the recorded values.
+ *
+ * Each bucket is a {@link LongAdder}, created when the first value falls
+ * into it, so threads recording similar values do not contend on a shared
+ * counter, and the few buckets in use cost little memory.
+ */
+public class Histogram {
+  private static final int SUB_BITS = 3;
+  public static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<>(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+
+    bucket(bucketIndex(value)).increment();
+    count.increment();
+    total.add(value);
+
+    long m;
+    while (value < (m = min.get()) && !min.compareAndSet(m, value))
+      ;
+    while (value > (m = max.get()) && !max.compareAndSet(m, value))
+      ;
+  }
+
+  private LongAdder bucket(int i) {
+    LongAdder b = buckets.get(i);
+    if (b == null) {
+      LongAdder fresh = new LongAdder();
+      b = buckets.compareAndSet(i, null, fresh) ? fresh : buckets.get(i);
+    }
+    return b;
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getTotal() {
+    return total.sum();
+  }
+
+  /**
+   * @return the smallest recorded value, or 0 if nothing was recorded.
+   */
+  public long getMin() {
+    long m = min.get();
+    return m == Long.MAX_VALUE ? 0 : m;
+  }
+
+  /**
+   * @return the largest recorded value, or 0 if nothing was recorded.
+   */
+  public long getMax() {
+    long m = max.get();
+    return m == Long.MIN_VALUE ? 0 : m;
+  }
+
+  public double getMean() {
+    long c = getCount();
+    return c == 0 ? 0 : (double) getTotal() / c;
+  }
+
+  /**
+   * @param percentile
+   *          between 0 and 100.
+   * @return an upper bound of the value below which the given percentage of
+   *         recorded values falls, or 0 if nothing was recorded.
+   */
+  public long getPercentile(double percentile) {
+    long c = getCount();
+    if (c == 0)
+      return 0;
+
+    long rank = (long) Math.ceil(percentile / 100 * c);
+    if (rank < 1)
+      rank = 1;
+
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      LongAdder b = buckets.get(i);
+      if (b == null)
+        continue;
+      seen += b.sum();
+      if (seen >= rank)
+        return Math.min(Math.max(bucketUpperBound(i), getMin()), getMax());
+    }
+    return getMax();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      LongAdder b = buckets.get(i);
+      if (b != null)
+        b.reset();
+    }
+    count.reset();
+    total.reset();
+    min.set(Long.MAX_VALUE);
+    max.set(Long.MIN_VALUE);
+  }
+
+  private static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+
+    int exp = index / SUB_BUCKETS + SUB_BITS - 1;
+    if (exp >= 63)
+      return Long.MAX_VALUE;
+    long sub = index % SUB_BUCKETS;
+    long width = 1L << (exp - SUB_BITS);
+    long lower = (SUB_BUCKETS + sub) * width;
+    return lower + width - 1;
+  }
+}
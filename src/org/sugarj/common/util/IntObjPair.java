@@ -0,0 +1,49 @@
+package org.sugarj.common.util;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A pair of a int value and an object that does not box the int.
+ */
+public class IntObjPair<B> implements Serializable {
+  private static final long serialVersionUID = 500252984403298661L;
+
+  public final int a;
+  public final B b;
+  
+  public IntObjPair(int a, B b) {
+    this.a = a;
+    this.b = b;
+  }
+  
+  public static <B> IntObjPair<B> create(int a, B b) {
+    return new IntObjPair<B>(a, b);
+  }
+  
+  public String toString() {
+    return "(" + a + ", " + (b == null ? "null" : b.toString()) + ")";
+  }
+  
+  public int getA() {
+    return a;
+  }
+
+  public B getB() {
+    return b;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 + Integer.hashCode(a)) + Objects.hashCode(b);
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof IntObjPair) {
+      IntObjPair<?> p = (IntObjPair<?>) o;
+      return a == p.a && Objects.equals(b, p.b);
+    }
+    return false;
+  }
+}
@@ -0,0 +1,48 @@
+package org.sugarj.common.util;
+
+import java.io.Serializable;
+
+/**
+ * A pair of int values that does not box its components.
+ */
+public class IntPair implements Serializable {
+  private static final long serialVersionUID = -86881308451072182L;
+
+  public final int a;
+  public final int b;
+  
+  public IntPair(int a, int b) {
+    this.a = a;
+    this.b = b;
+  }
+  
+  public static IntPair create(int a, int b) {
+    return new IntPair(a, b);
+  }
+  
+  public String toString() {
+    return "(" + a + ", " + b + ")";
+  }
+  
+  public int getA() {
+    return a;
+  }
+
+  public int getB() {
+    return b;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 + Integer.hashCode(a)) + Integer.hashCode(b);
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof IntPair) {
+      IntPair p = (IntPair) o;
+      return a == p.a && b == p.b;
+    }
+    return false;
+  }
+}
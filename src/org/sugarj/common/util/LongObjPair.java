@@ -0,0 +1,49 @@
+package org.sugarj.common.util;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A pair of a long value and an object that does not box the long.
+ */
+public class LongObjPair<B> implements Serializable {
+  private static final long serialVersionUID = -3517629243372638871L;
+
+  public final long a;
+  public final B b;
+  
+  public LongObjPair(long a, B b) {
+    this.a = a;
+    this.b = b;
+  }
+  
+  public static <B> LongObjPair<B> create(long a, B b) {
+    return new LongObjPair<B>(a, b);
+  }
+  
+  public String toString() {
+    return "(" + a + ", " + (b == null ? "null" : b.toString()) + ")";
+  }
+  
+  public long getA() {
+    return a;
+  }
+
+  public B getB() {
+    return b;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 + Long.hashCode(a)) + Objects.hashCode(b);
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof LongObjPair) {
+      LongObjPair<?> p = (LongObjPair<?>) o;
+      return a == p.a && Objects.equals(b, p.b);
+    }
+    return false;
+  }
+}
@@ -0,0 +1,48 @@
+package org.sugarj.common.util;
+
+import java.io.Serializable;
+
+/**
+ * A pair of long values that does not box its components.
+ */
+public class LongPair implements Serializable {
+  private static final long serialVersionUID = -805497645810267422L;
+
+  public final long a;
+  public final long b;
+  
+  public LongPair(long a, long b) {
+    this.a = a;
+    this.b = b;
+  }
+  
+  public static LongPair create(long a, long b) {
+    return new LongPair(a, b);
+  }
+  
+  public String toString() {
+    return "(" + a + ", " + b + ")";
+  }
+  
+  public long getA() {
+    return a;
+  }
+
+  public long getB() {
+    return b;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 + Long.hashCode(a)) + Long.hashCode(b);
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (o instanceof LongPair) {
+      LongPair p = (LongPair) o;
+      return a == p.a && b == p.b;
+    }
+    return false;
+  }
+}
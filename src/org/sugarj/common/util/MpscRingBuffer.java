@@ -0,0 +1,109 @@
+package org.sugarj.common.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer.
+ *
+ * Each slot carries a sequence number that tells producers whether the slot
+ * is free and the consumer whether it has been published (see Dmitry
+ * Vyukov's bounded MPMC queue). Producers only contend on a single CAS of
+ * the tail index; the consumer never writes shared state other than the
+ * slots it has consumed.
+ *
+ * Only one thread may call {@link #poll()} at a time.
+ */
+public class MpscRingBuffer<E> {
+  private final int mask;
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head;
+
+  /**
+   * @param capacity
+   *          rounded up to the next power of two.
+   */
+  public MpscRingBuffer(int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity)
+      size <<= 1;
+
+    this.mask = size - 1;
+    this.elements = new AtomicReferenceArray<>(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+      sequences.set(i, i);
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * @return false if the buffer is full.
+   */
+  public boolean offer(E e) {
+    if (e == null)
+      throw new NullPointerException();
+
+    long pos = tail.get();
+    for (;;) {
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          elements.lazySet(index, e);
+          sequences.set(index, pos + 1);
+          return true;
+        }
+        pos = tail.get();
+      }
+      else if (diff < 0)
+        return false;
+      else
+        pos = tail.get();
+    }
+  }
+
+  /**
+   * Consumer only.
+   *
+   * @return the oldest published element or null if there is none.
+   */
+  public E poll() {
+    long pos = head;
+    int index = (int) pos & mask;
+    if (sequences.get(index) != pos + 1)
+      return null;
+
+    E e = elements.get(index);
+    elements.lazySet(index, null);
+    sequences.set(index, pos + mask + 1);
+    head = pos + 1;
+    return e;
+  }
+
+  public boolean isEmpty() {
+    long pos = head;
+    return sequences.get((int) pos & mask) != pos + 1;
+  }
+
+  /**
+   * @return the number of elements ever offered successfully.
+   */
+  public long producedCount() {
+    return tail.get();
+  }
+
+  /**
+   * @return the number of elements ever polled.
+   */
+  public long consumedCount() {
+    return head;
+  }
+}
@@ -1,6 +1,7 @@
 package org.sugarj.common.util;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -32,9 +33,13 @@ public class Pair<A, B> implements Serializable {
     return b;
   }
 
+  /**
+   * Same value as <code>Objects.hash(a, b)</code>, without allocating the
+   * varargs array.
+   */
   @Override
   public int hashCode() {
-    return Objects.hash(a, b);
+    return 31 * (31 + Objects.hashCode(a)) + Objects.hashCode(b);
   }
   
   @Override
@@ -52,4 +57,23 @@ public class Pair<A, B> implements Serializable {
       map.put(p.a, p.b);
     return map;
   }
+  
+  /**
+   * Like {@link #asMap(Iterable)}, but sizes the map such that it does not
+   * need to be resized while filling it.
+   */
+  public static <A,B> Map<A, B> asMap(Collection<Pair<A, B>> col) {
+    Map<A, B> map = new HashMap<>(capacityFor(col.size()));
+    for (Pair<A, B> p : col)
+      map.put(p.a, p.b);
+    return map;
+  }
+  
+  /**
+   * @return the initial capacity of a {@link HashMap} that holds
+   *         <code>size</code> entries without rehashing.
+   */
+  private static int capacityFor(int size) {
+    return size < 3 ? size + 1 : (int) Math.min((long) size * 4 / 3 + 1, Integer.MAX_VALUE);
+  }
 }